@@ -0,0 +1,122 @@
+package com.github.afkbrb.hack.asm;
+
+import com.github.afkbrb.hack.benchmarks.Inputs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.afkbrb.hack.asm.Parser.CommandType.C_COMMAND;
+
+/**
+ * It's in the package of the assembler to reach Parser and Code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AssemblerBenchmark {
+
+    @Param({"10000", "1000000", "10000000", Inputs.SYSTEM_LIB})
+    public String input;
+
+    private File dir;
+
+    private File asmFile;
+
+    private int[] destKeys;
+
+    private int[] compKeys;
+
+    private int[] jumpKeys;
+
+    private String[] comps;
+
+    @Setup
+    public void setup() throws IOException, AssemblyException {
+        dir = Inputs.tempDir("asm");
+        asmFile = Inputs.asm(dir, input);
+
+        // the C-instructions of the input, for the Code lookups
+        int n = 0;
+        destKeys = new int[1024];
+        compKeys = new int[1024];
+        jumpKeys = new int[1024];
+        comps = new String[1024];
+        try (Parser parser = new Parser(asmFile)) {
+            parser.advance();
+            while (parser.hasMoreCommands()) {
+                if (parser.commandType() == C_COMMAND) {
+                    if (n == destKeys.length) {
+                        destKeys = Arrays.copyOf(destKeys, n * 2);
+                        compKeys = Arrays.copyOf(compKeys, n * 2);
+                        jumpKeys = Arrays.copyOf(jumpKeys, n * 2);
+                        comps = Arrays.copyOf(comps, n * 2);
+                    }
+                    destKeys[n] = parser.destKey();
+                    compKeys[n] = parser.compKey();
+                    jumpKeys[n] = parser.jumpKey();
+                    comps[n] = parser.comp();
+                    n++;
+                }
+                parser.advance();
+            }
+        }
+        destKeys = Arrays.copyOf(destKeys, n);
+        compKeys = Arrays.copyOf(compKeys, n);
+        jumpKeys = Arrays.copyOf(jumpKeys, n);
+        comps = Arrays.copyOf(comps, n);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Inputs.delete(dir);
+    }
+
+    @Benchmark
+    public int parserAdvance() throws IOException, AssemblyException {
+        int commands = 0;
+        try (Parser parser = new Parser(asmFile)) {
+            parser.advance();
+            while (parser.hasMoreCommands()) {
+                commands += parser.commandType().ordinal();
+                parser.advance();
+            }
+        }
+        return commands;
+    }
+
+    @Benchmark
+    public int codeCInstruction() {
+        int sum = 0;
+        for (int i = 0; i < compKeys.length; i++) {
+            sum += Code.cInstruction(destKeys[i], compKeys[i], jumpKeys[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int codeComp() throws AssemblyException {
+        int sum = 0;
+        for (String comp : comps) {
+            sum += Code.comp(comp).length();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void assemble() throws IOException, AssemblyException {
+        new HackAssembler(asmFile).assemble();
+    }
+
+    @Benchmark
+    public void assembleTwoPass() throws IOException, AssemblyException {
+        HackAssembler assembler = new HackAssembler(asmFile);
+        assembler.setupSymbolTable();
+        assembler.genCode();
+    }
+}
@@ -0,0 +1,211 @@
+package com.github.afkbrb.hack.benchmarks;
+
+import com.github.afkbrb.hack.jack.compiler.CompileException;
+import com.github.afkbrb.hack.jack.compiler.JackCompiler;
+import com.github.afkbrb.hack.vm.translator.VMTranslator;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The inputs of the benchmarks, written to a temporary directory.
+ *
+ * An input is either a number of lines, for a synthetic program that looks like
+ * what the tool chain generates, or "system-lib", for the bundled Jack sources
+ * (compiled and translated as needed). The directory of the system-lib is given by
+ * the system property hack.systemLib, ../system-lib by default.
+ */
+public final class Inputs {
+
+    public static final String SYSTEM_LIB = "system-lib";
+
+    private Inputs() {
+    }
+
+    public static File tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    public static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Return the jack files of input in dir.
+     */
+    public static List<File> jack(File dir, String input) throws IOException {
+        if (input.equals(SYSTEM_LIB)) {
+            File systemLib = new File(System.getProperty("hack.systemLib", "../system-lib"));
+            List<File> files = new ArrayList<>();
+            File[] sources = Objects.requireNonNull(systemLib.listFiles(), systemLib + " not found");
+            Arrays.sort(sources);
+            for (File source : sources) {
+                if (source.getName().endsWith(".jack")) {
+                    File file = new File(dir, source.getName());
+                    Files.copy(source.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    files.add(file);
+                }
+            }
+            return files;
+        }
+
+        File file = new File(dir, "Main.jack");
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            int lines = Integer.parseInt(input);
+            out.println("class Main {");
+            out.println("    static int count;");
+            int written = 2;
+            for (int f = 0; written < lines - 1; f++) {
+                out.println("    function int f" + f + "(int a, int b) {");
+                out.println("        var int i, sum;");
+                out.println("        var Array buf;");
+                out.println("        let i = 0;");
+                out.println("        let sum = 0;");
+                out.println("        let buf = Array.new(16);");
+                out.println("        while (i < a) {");
+                out.println("            if ((i & 1) = 0) {");
+                out.println("                let sum = sum + (i * b);");
+                out.println("            } else {");
+                out.println("                let sum = sum - Main.f" + f + "(i, b - 1);");
+                out.println("            }");
+                out.println("            let buf[i & 15] = sum;");
+                out.println("            let i = i + 1;");
+                out.println("        }");
+                out.println("        let count = count + 1;");
+                out.println("        do Output.printString(\"f" + f + "\");");
+                out.println("        do buf.dispose();");
+                out.println("        return -sum;");
+                out.println("    }");
+                written += 20;
+            }
+            out.println("}");
+        }
+        return Collections.singletonList(file);
+    }
+
+    /**
+     * Return the vm file or the directory of vm files of input in dir.
+     */
+    public static File vm(File dir, String input) throws IOException {
+        if (input.equals(SYSTEM_LIB)) {
+            jack(dir, input);
+            try {
+                new JackCompiler().compile(dir);
+            } catch (CompileException e) {
+                throw new IOException(e);
+            }
+            for (File file : Objects.requireNonNull(dir.listFiles())) {
+                if (!file.getName().endsWith(".vm")) {
+                    file.delete();
+                }
+            }
+            return dir;
+        }
+
+        File file = new File(dir, "Main.vm");
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            int lines = Integer.parseInt(input);
+            for (int f = 0, written = 0; written < lines; f++) {
+                out.println("function Main.f" + f + " 2");
+                out.println("push constant 0");
+                out.println("pop local 0");
+                out.println("label LOOP_" + f);
+                out.println("push local 0");
+                out.println("push argument 0");
+                out.println("lt");
+                out.println("not");
+                out.println("if-goto END_" + f);
+                out.println("push local 1");
+                out.println("push argument 1");
+                out.println("add");
+                out.println("pop local 1");
+                out.println("push static " + (f % 64));
+                out.println("push constant 1");
+                out.println("add");
+                out.println("pop static " + (f % 64));
+                out.println("push local 0");
+                out.println("push constant 1");
+                out.println("add");
+                out.println("pop local 0");
+                out.println("goto LOOP_" + f);
+                out.println("label END_" + f);
+                out.println("push local 1");
+                out.println("push argument 0");
+                out.println("call Main.f" + (f / 2) + " 2");
+                out.println("pop temp 0");
+                out.println("push pointer 0");
+                out.println("pop that 0");
+                out.println("push local 1");
+                out.println("return");
+                written += 31;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Return the asm file of input in dir.
+     */
+    public static File asm(File dir, String input) throws IOException {
+        if (input.equals(SYSTEM_LIB)) {
+            File vmDir = vm(dir, input);
+            try (VMTranslator translator = new VMTranslator(vmDir)) {
+                translator.translate();
+            }
+            return new File(vmDir, vmDir.getName() + ".asm");
+        }
+
+        File file = new File(dir, "Main.asm");
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            int lines = Integer.parseInt(input);
+            for (int n = 0, written = 0; written < lines; n++) {
+                out.println("(LOOP_" + n + ")"); // push local 1
+                out.println("@1");
+                out.println("D=A");
+                out.println("@LCL");
+                out.println("A=D+M");
+                out.println("D=M");
+                out.println("@SP");
+                out.println("A=M");
+                out.println("M=D");
+                out.println("@SP");
+                out.println("M=M+1");
+                out.println("@SP // pop static");
+                out.println("AM=M-1");
+                out.println("D=M");
+                out.println("@Main." + (n % 256));
+                out.println("M=D");
+                out.println("@SP // lt");
+                out.println("AM=M-1");
+                out.println("D=M");
+                out.println("A=A-1");
+                out.println("D=M-D");
+                out.println("@JMP_" + n);
+                out.println("D;JLT");
+                out.println("@SP");
+                out.println("A=M-1");
+                out.println("M=0");
+                out.println("@LOOP_" + (n / 2));
+                out.println("0;JMP");
+                out.println("(JMP_" + n + ")");
+                out.println("@SP");
+                out.println("A=M-1");
+                out.println("M=-1");
+                written += 32;
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.afkbrb.hack.jack.compiler;
+
+import com.github.afkbrb.hack.benchmarks.Inputs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompilerBenchmark {
+
+    @Param({"10000", "1000000", "10000000", Inputs.SYSTEM_LIB})
+    public String input;
+
+    private File dir;
+
+    private List<File> jackFiles;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Inputs.tempDir("jack");
+        jackFiles = Inputs.jack(dir, input);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Inputs.delete(dir);
+    }
+
+    @Benchmark
+    public int tokenizerAdvance() throws IOException {
+        int tokens = 0;
+        for (File file : jackFiles) {
+            try (Tokenizer tokenizer = new Tokenizer(file)) {
+                tokenizer.advance();
+                while (tokenizer.hasMoreTokens()) {
+                    tokens++;
+                    tokenizer.advance();
+                }
+            }
+        }
+        return tokens;
+    }
+
+    @Benchmark
+    public void compileClass() throws IOException, CompileException {
+        for (File file : jackFiles) {
+            try (CompilationEngine engine = new CompilationEngine(file)) {
+                engine.compileClass();
+            }
+        }
+    }
+}
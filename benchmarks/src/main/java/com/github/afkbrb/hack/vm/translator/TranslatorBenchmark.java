@@ -0,0 +1,107 @@
+package com.github.afkbrb.hack.vm.translator;
+
+import com.github.afkbrb.hack.benchmarks.Inputs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * It's in the package of the translator to reach VMProgram.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TranslatorBenchmark {
+
+    @Param({"10000", "1000000", "10000000", Inputs.SYSTEM_LIB})
+    public String input;
+
+    private File dir;
+
+    private File source; // a vm file or a directory
+
+    private File asmFile;
+
+    private final List<File> vmFiles = new ArrayList<>();
+
+    private final List<VMProgram> programs = new ArrayList<>(); // for the CodeWriter alone
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Inputs.tempDir("vm");
+        source = Inputs.vm(dir, input);
+        asmFile = new File(dir, "Out.asm");
+        if (source.isDirectory()) {
+            File[] files = source.listFiles((d, name) -> name.endsWith(".vm"));
+            Arrays.sort(files);
+            vmFiles.addAll(Arrays.asList(files));
+        } else {
+            vmFiles.add(source);
+        }
+
+        for (File file : vmFiles) {
+            programs.add(VMProgram.parse(file));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Inputs.delete(dir);
+    }
+
+    @Benchmark
+    public int parserAdvance() throws IOException {
+        int commands = 0;
+        for (File file : vmFiles) {
+            try (Parser parser = new Parser(file)) {
+                parser.advance();
+                while (parser.hasMoreCommand()) {
+                    commands += parser.type().ordinal();
+                    parser.advance();
+                }
+            }
+        }
+        return commands;
+    }
+
+    @Benchmark
+    public int parse() throws IOException {
+        int commands = 0;
+        for (File file : vmFiles) {
+            commands += VMProgram.parse(file).size();
+        }
+        return commands;
+    }
+
+    @Benchmark
+    public void codeWriter() throws IOException {
+        try (CodeWriter writer = new CodeWriter(asmFile)) {
+            for (VMProgram program : programs) {
+                writer.write(program);
+            }
+        }
+    }
+
+    @Benchmark
+    public void translate() throws IOException {
+        try (VMTranslator translator = new VMTranslator(source)) {
+            translator.translate();
+        }
+    }
+
+    @Benchmark
+    public void translateParallel() throws IOException {
+        try (VMTranslator translator = new VMTranslator(source)) {
+            translator.setParallelism(Runtime.getRuntime().availableProcessors());
+            translator.translate();
+        }
+    }
+}
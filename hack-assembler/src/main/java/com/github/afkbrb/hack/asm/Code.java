@@ -1,5 +1,6 @@
 package com.github.afkbrb.hack.asm;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -9,6 +10,22 @@ final class Code {
     private static final Map<String, String> compMap = new HashMap<>();
     private static final Map<String, String> jumpMap = new HashMap<>();
 
+    /**
+     * The key of "null", the mnemonic of an omitted dest or jump.
+     */
+    static final int NULL_KEY = key("null");
+
+    // Every mnemonic packs into an int key (at most 4 ASCII chars), the keys are interned
+    // in an open addressing table so that a mnemonic can be looked up without a String.
+    private static final int TABLE_BITS = 7;
+    private static final int[] keys = new int[1 << TABLE_BITS];
+    private static final String[] mnemonics = new String[1 << TABLE_BITS];
+
+    // bit fields of the mnemonic in each slot, -1 if it's not valid at that position
+    private static final int[] destBits = new int[1 << TABLE_BITS];
+    private static final int[] compBits = new int[1 << TABLE_BITS];
+    private static final int[] jumpBits = new int[1 << TABLE_BITS];
+
     static {
         // destMap
         destMap.put("null", "000");
@@ -77,6 +94,82 @@ final class Code {
         jumpMap.put("JNE",  "101");
         jumpMap.put("JLE",  "110");
         jumpMap.put("JMP",  "111");
+
+        Arrays.fill(destBits, -1);
+        Arrays.fill(compBits, -1);
+        Arrays.fill(jumpBits, -1);
+        intern(destMap, destBits);
+        intern(compMap, compBits);
+        intern(jumpMap, jumpBits);
+    }
+
+    private static void intern(Map<String, String> map, int[] bits) {
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            int key = key(entry.getKey());
+            int slot = probe(key);
+            keys[slot] = key;
+            mnemonics[slot] = entry.getKey();
+            bits[slot] = Integer.parseInt(entry.getValue(), 2);
+        }
+    }
+
+    /**
+     * Return the machine code 111a cccc ccdd djjj of a C-instruction given the keys
+     * of its mnemonics, or -1 if any of them is not valid.
+     */
+    static int cInstruction(int destKey, int compKey, int jumpKey) {
+        int dest = destBits[probe(destKey)];
+        int comp = compBits[probe(compKey)];
+        int jump = jumpBits[probe(jumpKey)];
+        if ((dest | comp | jump) < 0) {
+            return -1;
+        }
+        return 0b111 << 13 | comp << 6 | dest << 3 | jump;
+    }
+
+    /**
+     * Pack the mnemonic in buf[offset, offset + length) into an int key,
+     * return -1 if it's too long to be a mnemonic.
+     */
+    static int key(byte[] buf, int offset, int length) {
+        if (length > 4) {
+            return -1;
+        }
+        int key = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            key = (key << 8) | (buf[offset + i] & 0xff);
+        }
+        return key;
+    }
+
+    static int key(String mnemonic) {
+        if (mnemonic.length() > 4) {
+            return -1;
+        }
+        int key = 0;
+        for (int i = mnemonic.length() - 1; i >= 0; i--) {
+            key = (key << 8) | (mnemonic.charAt(i) & 0xff);
+        }
+        return key;
+    }
+
+    /**
+     * Return the interned String of a valid mnemonic key, or null if the key isn't one.
+     */
+    static String mnemonic(int key) {
+        return mnemonics[probe(key)];
+    }
+
+    /**
+     * Return the slot of key in the table, or the empty slot where it would be.
+     */
+    private static int probe(int key) {
+        int mask = keys.length - 1;
+        int slot = (key * 0x9e3779b9) >>> (32 - TABLE_BITS);
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
     }
 
     /**
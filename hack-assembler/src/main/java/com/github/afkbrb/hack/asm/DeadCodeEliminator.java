@@ -0,0 +1,132 @@
+package com.github.afkbrb.hack.asm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.afkbrb.hack.asm.Parser.CommandType.*;
+
+/**
+ * Drop the code that can't be reached from address 0.
+ *
+ * Execution starts at 0 and goes on to the next instruction, unless the instruction is
+ * an unconditional jump (comp;JMP). A label is reached by falling through into it, or by
+ * any @label in the reachable code: the address may be a jump target or a return address
+ * saved for a jump through a register later, so every use of it counts.
+ *
+ * A numeric address that may be jumped to, right away (@3, 0;JMP) or later through D or
+ * memory, see Instruction.codeAddress, reaches that ROM address. It only holds if nothing
+ * before it moves, so everything up to the target is kept as well.
+ *
+ * The instructions are counted per label region, from a label to the next one,
+ * to report where the removed words come from.
+ */
+final class DeadCodeEliminator {
+
+    private static final String START = "(start)"; // the region before the first label
+
+    private final List<String> regions = new ArrayList<>();
+
+    private final List<Integer> removed = new ArrayList<>();
+
+    private int wordsBefore;
+
+    private int wordsAfter;
+
+    /**
+     * Return the reachable part of program.
+     */
+    List<Instruction> eliminate(List<Instruction> program) {
+        regions.clear();
+        removed.clear();
+        int n = program.size();
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            if (program.get(i).type == L_COMMAND) {
+                labels.put(program.get(i).symbol, i);
+            }
+        }
+
+        boolean[] reachable = new boolean[n];
+        int kept = 0; // the instructions before kept stay, so numeric targets keep their address
+        Deque<Integer> work = new ArrayDeque<>();
+        work.push(0);
+        while (!work.isEmpty()) {
+            for (int i = work.pop(); i < n && !reachable[i]; i++) {
+                reachable[i] = true;
+                Instruction instruction = program.get(i);
+                if (instruction.type == A_COMMAND) {
+                    Integer target = labels.get(instruction.symbol);
+                    if (target != null && !reachable[target]) {
+                        work.push(target);
+                    } else if (target == null && Instruction.codeAddress(program, i) >= 0) {
+                        int last = Instruction.indexOf(program, Instruction.codeAddress(program, i));
+                        for (; kept <= last; kept++) {
+                            work.push(kept);
+                        }
+                    }
+                } else if (instruction.type == C_COMMAND && instruction.jump.equals("JMP")) {
+                    break; // no fall through
+                }
+            }
+        }
+
+        List<Instruction> out = new ArrayList<>(n);
+        String region = START;
+        int regionRemoved = 0;
+        wordsBefore = 0;
+        for (int i = 0; i < n; i++) {
+            Instruction instruction = program.get(i);
+            if (instruction.type == L_COMMAND) {
+                addRegion(region, regionRemoved);
+                region = instruction.symbol;
+                regionRemoved = 0;
+            } else {
+                wordsBefore++;
+                if (!reachable[i]) {
+                    regionRemoved++;
+                }
+            }
+            if (reachable[i]) {
+                out.add(instruction);
+            }
+        }
+        addRegion(region, regionRemoved);
+        wordsAfter = wordsBefore;
+        for (int words : removed) {
+            wordsAfter -= words;
+        }
+        return out;
+    }
+
+    private void addRegion(String region, int words) {
+        if (words > 0) {
+            regions.add(region);
+            removed.add(words);
+        }
+    }
+
+    int wordsBefore() {
+        return wordsBefore;
+    }
+
+    int wordsAfter() {
+        return wordsAfter;
+    }
+
+    /**
+     * ROM words before and after, and the words removed from every label region.
+     */
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("dead code: %d -> %d words (-%.1f%%)%n", wordsBefore, wordsAfter,
+                wordsBefore == 0 ? 0.0 : 100.0 * (wordsBefore - wordsAfter) / wordsBefore));
+        for (int i = 0; i < regions.size(); i++) {
+            sb.append(String.format("  %-40s %d%n", regions.get(i), removed.get(i)));
+        }
+        return sb.toString();
+    }
+}
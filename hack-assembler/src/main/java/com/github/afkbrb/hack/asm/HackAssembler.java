@@ -1,6 +1,13 @@
 package com.github.afkbrb.hack.asm;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import static com.github.afkbrb.hack.asm.Parser.CommandType.*;
 
@@ -8,10 +15,20 @@ public class HackAssembler {
 
     private final File asmFile;
 
-    private final File hackFile;
+    private final String outputPath; // output file path without extension
+
+    private RomWriter.Format format = RomWriter.Format.TEXT;
 
     private final SymbolTable symbolTable = new SymbolTable();
 
+    private PeepholeOptimizer optimizer; // null if not optimizing
+
+    private DeadCodeEliminator eliminator; // null if not eliminating dead code
+
+    private final Stats stats = new Stats("hack-assembler");
+
+    private int predefinedSymbols;
+
     public HackAssembler(File asmFile) throws IOException {
         this.asmFile = asmFile;
         if (asmFile.isDirectory()) {
@@ -23,16 +40,109 @@ public class HackAssembler {
 
         String canonicalPath = asmFile.getCanonicalPath();
         String parent = canonicalPath.substring(0, canonicalPath.lastIndexOf(File.separator));
-        String hackFilename = parent + File.separator + asmFile.getName().split("\\.")[0] + ".hack";
-        hackFile = new File(hackFilename);
+        outputPath = parent + File.separator + asmFile.getName().split("\\.")[0];
+
+        initSymbolTable();
+    }
 
+    private HackAssembler() { // for the in-memory API, there's no file
+        asmFile = null;
+        outputPath = null;
         initSymbolTable();
     }
 
+    /**
+     * Assemble the program read from in, return the machine code.
+     */
+    public static short[] assemble(InputStream in) throws IOException, AssemblyException {
+        return toShorts(new HackAssembler().encode(new Parser(in, false)));
+    }
+
+    public static short[] assemble(Reader in) throws IOException, AssemblyException {
+        return toShorts(new HackAssembler().encode(new Parser(in, false)));
+    }
+
+    public static short[] assemble(CharSequence asm) throws IOException, AssemblyException {
+        return assemble(new StringReader(asm.toString()));
+    }
+
+    /**
+     * Assemble the program read from in and write the ROM image to out, neither stream is closed.
+     */
+    public static void assemble(InputStream in, OutputStream out, RomWriter.Format format) throws IOException, AssemblyException {
+        write(new HackAssembler().encode(new Parser(in, false)), new RomWriter(out, format));
+    }
+
+    private static short[] toShorts(int[] words) {
+        short[] rom = new short[words.length];
+        for (int i = 0; i < words.length; i++) {
+            rom[i] = (short) words[i];
+        }
+        return rom;
+    }
+
+    /**
+     * Set the format of the ROM image, TEXT(.hack) by default.
+     */
+    public void setFormat(RomWriter.Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Run the peephole optimizer before encoding, only assemble() does it.
+     */
+    public void setOptimize(boolean optimize) {
+        optimizer = optimize ? new PeepholeOptimizer() : null;
+    }
+
+    /**
+     * Return what the optimizer did in the last assemble(), or null if not optimizing.
+     */
+    public String optimizerReport() {
+        return optimizer == null ? null : optimizer.report();
+    }
+
+    /**
+     * Drop the code unreachable from address 0 before encoding, only assemble() does it,
+     * a module for the linker doesn't start at 0.
+     */
+    public void setEliminateDeadCode(boolean eliminate) {
+        eliminator = eliminate ? new DeadCodeEliminator() : null;
+    }
+
+    /**
+     * Return the words removed in the last assemble(), or null if not eliminating dead code.
+     */
+    public String deadCodeReport() {
+        return eliminator == null ? null : eliminator.report();
+    }
+
+    /**
+     * Return the phase timings and counters of the runs of this assembler.
+     */
+    public Stats stats() {
+        return stats;
+    }
+
+    /**
+     * Return the file the ROM image is written to.
+     */
+    public File outputFile() {
+        return new File(outputPath + format.extension());
+    }
+
     /**
      * Add the pre-defined symbols to the symbol table.
      */
     private void initSymbolTable() {
+        addPredefinedSymbols(symbolTable);
+        predefinedSymbols = symbolTable.size();
+    }
+
+    /**
+     * The pre-defined symbols, the linker starts from them as well.
+     */
+    static void addPredefinedSymbols(SymbolTable symbolTable) {
         // 虚拟寄存器
         symbolTable.addEntry("R0", 0);
         symbolTable.addEntry("R1", 1);
@@ -70,21 +180,23 @@ public class HackAssembler {
      * the number of the instruction following (xxx).
      */
     public void setupSymbolTable() throws IOException, AssemblyException {
+        stats.begin("symbol pass");
         int nextAddress = 0;
         try (Parser parser = new Parser(asmFile, true)) { // only deal with label, so we set labelOnly to true for better performance
             parser.advance();
             while (parser.hasMoreCommands()) {
                 if (parser.commandType() == L_COMMAND) { // label
-                    if (symbolTable.contains(parser.symbol())) {
+                    if (symbolTable.putIfAbsent(parser.symbol(), nextAddress) != -1) {
                         throw new AssemblyException("label " + parser.symbol() + " must be unique");
                     }
-                    symbolTable.addEntry(parser.symbol(), nextAddress);
                 } else {
                     nextAddress++;
                 }
                 parser.advance();
             }
+            stats.count("lines", parser.lineno());
         }
+        stats.end();
     }
 
 
@@ -102,62 +214,569 @@ public class HackAssembler {
      * - Write the translated instruction to the output file.
      */
     public void genCode() throws IOException, AssemblyException {
+        stats.begin("encode+write");
         int nextVarAddress = 16;
-        try (Parser parser = new Parser(asmFile, false); Writer writer = new BufferedWriter(new FileWriter(hackFile))) {
+        int instructions = 0;
+        try (Parser parser = new Parser(asmFile, false); RomWriter writer = new RomWriter(outputFile(), format)) {
             parser.advance();
             while (parser.hasMoreCommands()) {
                 if (parser.commandType() == A_COMMAND) {
                     String symbol = parser.symbol();
-                    int address = -1;
-                    try {
-                        address = Integer.parseInt(symbol); // symbol may be a number
-                    } catch (Exception e) {
-                        ; // do nothing
-                    }
+                    int address = parseAddress(symbol);
                     if (address == -1) {
-                        if (symbolTable.contains(symbol)) { // defined var or label
-                            address = symbolTable.getAddress(symbol);
-                        } else {
-                            symbolTable.addEntry(symbol, nextVarAddress); // allocate memory address for var
+                        address = symbolTable.putIfAbsent(symbol, nextVarAddress); // defined var or label
+                        if (address == -1) { // allocate memory address for var
                             address = nextVarAddress;
                             nextVarAddress++;
                         }
                     }
 
-                    // we need to convert address to 15 bits
-                    String addressStr = intTo15Bits(address);
-                    String instruction = "0" + addressStr + "\n";
-                    writer.write(instruction);
+                    writer.write(address & 0x7fff); // we need to convert address to 15 bits
+                    instructions++;
                 } else if (parser.commandType() == C_COMMAND) {
-                    String dest = Code.dest(parser.dest());
-                    String comp = Code.comp(parser.comp());
-                    String jump = Code.jump(parser.jump());
-                    String instruction = "111" + comp + dest + jump + "\n";
-                    writer.write(instruction);
+                    writer.write(encodeC(parser));
+                    instructions++;
                 } // don't need to deal with L_COMMAND in this pass
                 parser.advance();
             }
         }
+        stats.end();
+        countSymbols(instructions, nextVarAddress - 16);
+    }
+
+    /**
+     * Single pass:
+     * Scan the program once and encode every instruction into an in-memory buffer.
+     * - If the instruction is @symbol and symbol is a number or an already known symbol,
+     *   encode it right away;
+     * - Otherwise, record the buffer index as a forward reference to symbol;
+     * - If the instruction is (xxx), add (xxx, address) to the symbol table and patch
+     *   all the pending references to xxx.
+     * The references still pending at the end are variables, they are allocated from 16
+     * in the order of their first use, exactly as genCode() does, so the output is the same
+     * as the two-pass one.
+     */
+    public void assemble() throws IOException, AssemblyException {
+        int[] words;
+        try (Parser parser = new Parser(asmFile, false)) {
+            words = encode(parser);
+        }
+        stats.begin("write");
+        try (RomWriter writer = new RomWriter(outputFile(), format)) {
+            write(words, writer);
+        }
+        stats.end();
+    }
+
+    /**
+     * Assemble the program as a module of a bigger one, and write the object file
+     * next to the asm file, see ObjectFile and HackLinker.
+     */
+    public void assembleObject() throws IOException, AssemblyException {
+        List<Instruction> program;
+        try (Parser parser = new Parser(asmFile, false)) {
+            program = read(parser);
+        }
+        if (optimizer != null) {
+            program = optimize(program);
+        }
+        stats.begin("encode");
+        ObjectFile object = encodeObject(program);
+        stats.begin("write");
+        object.write(objectFile());
+        stats.end();
+        stats.count("instructions", object.words.length);
+        stats.count("labels", object.labels.length);
+        stats.count("external symbols", object.symbols.length);
+    }
+
+    /**
+     * Return the file assembleObject() writes to.
+     */
+    public File objectFile() {
+        return new File(outputPath + ObjectFile.EXTENSION);
+    }
+
+    /**
+     * Assemble with the given number of threads:
+     * the source is split into line-aligned chunks, which are parsed and encoded
+     * concurrently, see ParallelAssembler. The output is the same as assemble().
+     */
+    public void assembleParallel(int parallelism) throws IOException, AssemblyException {
+        stats.begin("read");
+        int[] words = encodeParallel(Files.readAllBytes(asmFile.toPath()), parallelism);
+        stats.begin("write");
+        try (RomWriter writer = new RomWriter(outputFile(), format)) {
+            write(words, writer);
+        }
+        stats.end();
+    }
+
+    /**
+     * The parallel version of assemble(InputStream, OutputStream, Format), in is read up to EOF first.
+     */
+    public static void assembleParallel(InputStream in, OutputStream out, RomWriter.Format format, int parallelism)
+            throws IOException, AssemblyException {
+        write(new HackAssembler().encodeParallel(readAll(in), parallelism), new RomWriter(out, format));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream source = new ByteArrayOutputStream();
+        byte[] buf = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            source.write(buf, 0, n);
+        }
+        return source.toByteArray();
+    }
+
+    private int[] encodeParallel(byte[] source, int parallelism) throws IOException, AssemblyException {
+        stats.begin("parse+encode");
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            ParallelAssembler assembler = new ParallelAssembler(symbolTable, pool, stats);
+            int[] words = assembler.assemble(source);
+            stats.end();
+            int lines = 0;
+            for (byte b : source) {
+                if (b == '\n') {
+                    lines++;
+                }
+            }
+            stats.count("lines", source.length > 0 && source[source.length - 1] != '\n' ? lines + 1 : lines);
+            countSymbols(words.length, assembler.variables());
+            return words;
+        } catch (AssemblyException e) {
+            // a chunk only knows its own line numbers, let the sequential pass report the error
+            new HackAssembler().encode(new Parser(source, 0, source.length, false));
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void write(int[] words, RomWriter writer) throws IOException {
+        for (int word : words) {
+            writer.write(word);
+        }
+        writer.finish();
+    }
+
+    /**
+     * The single pass described above, return the encoded instructions.
+     */
+    private int[] encode(Parser parser) throws IOException, AssemblyException {
+        if (eliminator != null || optimizer != null) {
+            List<Instruction> program = read(parser);
+            if (eliminator != null) {
+                stats.begin("dead code");
+                program = eliminator.eliminate(program);
+                stats.count("dead code words", eliminator.wordsBefore() - eliminator.wordsAfter());
+            }
+            if (optimizer != null) {
+                program = optimize(program);
+            }
+            stats.begin("encode");
+            int[] words = encode(program);
+            stats.end();
+            return words;
+        }
+        stats.begin("parse+encode");
+        int[] words = new int[1024];
+        int nextAddress = 0;
+        // LinkedHashMap keeps the order of the first use, which decides the variable addresses
+        Map<String, Fixups> pending = new LinkedHashMap<>();
+        parser.advance();
+        while (parser.hasMoreCommands()) {
+            if (parser.commandType() == L_COMMAND) {
+                defineLabel(parser.symbol(), nextAddress, words, pending);
+            } else {
+                if (nextAddress == words.length) {
+                    words = Arrays.copyOf(words, words.length * 2);
+                }
+                if (parser.commandType() == A_COMMAND) {
+                    int address = resolve(parser);
+                    if (address == -1) { // forward label or var, we'll know it later
+                        pending.computeIfAbsent(parser.symbol(), k -> new Fixups()).add(nextAddress);
+                        address = 0;
+                    }
+                    words[nextAddress] = address & 0x7fff;
+                } else {
+                    words[nextAddress] = encodeC(parser);
+                }
+                nextAddress++;
+            }
+            parser.advance();
+        }
+        int variables = allocateVariables(words, pending);
+        stats.end();
+        stats.count("lines", parser.lineno());
+        countSymbols(nextAddress, variables);
+        return Arrays.copyOf(words, nextAddress);
+    }
+
+    private List<Instruction> read(Parser parser) throws IOException, AssemblyException {
+        stats.begin("parse");
+        List<Instruction> program = Instruction.read(parser);
+        stats.end();
+        stats.count("lines", parser.lineno());
+        return program;
+    }
+
+    private List<Instruction> optimize(List<Instruction> program) {
+        stats.begin("optimize");
+        program = optimizer.optimize(program);
+        stats.end();
+        stats.count("peephole words", optimizer.wordsBefore() - optimizer.wordsAfter());
+        return program;
     }
 
-    private static String intTo15Bits(int n) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < 15; i++) {
-            sb.append(n & 1);
-            n >>>= 1;
+    /**
+     * The same as encode(Parser), for a program that has been read into memory.
+     */
+    private int[] encode(List<Instruction> program) throws AssemblyException {
+        int[] words = new int[program.size()];
+        int nextAddress = 0;
+        Map<String, Fixups> pending = new LinkedHashMap<>();
+        for (Instruction instruction : program) {
+            if (instruction.type == L_COMMAND) {
+                defineLabel(instruction.symbol, nextAddress, words, pending);
+            } else if (instruction.type == A_COMMAND) {
+                int address = parseAddress(instruction.symbol);
+                if (address == -1) {
+                    address = symbolTable.getOrDefault(instruction.symbol, -1);
+                }
+                if (address == -1) {
+                    pending.computeIfAbsent(instruction.symbol, k -> new Fixups()).add(nextAddress);
+                    address = 0;
+                }
+                words[nextAddress++] = address & 0x7fff;
+            } else {
+                words[nextAddress++] = instruction.encode();
+            }
+        }
+        countSymbols(nextAddress, allocateVariables(words, pending));
+        return Arrays.copyOf(words, nextAddress);
+    }
+
+    /**
+     * Like encode(List), but the labels are module-relative: a reference to one of them is
+     * a relocation, and the other symbols are left to the linker instead of becoming variables.
+     */
+    private ObjectFile encodeObject(List<Instruction> program) throws AssemblyException {
+        SymbolTable labels = new SymbolTable();
+        List<String> labelNames = new ArrayList<>();
+        int[] labelAddresses = new int[16];
+        Fixups relocations = new Fixups();
+        int[] words = new int[program.size()];
+        int nextAddress = 0;
+        Map<String, Fixups> pending = new LinkedHashMap<>();
+        for (Instruction instruction : program) {
+            if (instruction.type == L_COMMAND) {
+                if (labels.putIfAbsent(instruction.symbol, nextAddress) != -1) {
+                    throw new AssemblyException("label " + instruction.symbol + " must be unique");
+                }
+                if (labelNames.size() == labelAddresses.length) {
+                    labelAddresses = Arrays.copyOf(labelAddresses, labelAddresses.length * 2);
+                }
+                labelAddresses[labelNames.size()] = nextAddress;
+                labelNames.add(instruction.symbol);
+                Fixups fixups = pending.remove(instruction.symbol);
+                if (fixups != null) {
+                    fixups.patch(words, nextAddress);
+                    relocations.addAll(fixups);
+                }
+            } else if (instruction.type == A_COMMAND) {
+                int address = parseAddress(instruction.symbol);
+                if (address == -1) {
+                    address = symbolTable.getOrDefault(instruction.symbol, -1); // pre-defined
+                }
+                if (address == -1) {
+                    address = labels.getOrDefault(instruction.symbol, -1);
+                    if (address != -1) {
+                        relocations.add(nextAddress);
+                    }
+                }
+                if (address == -1) {
+                    pending.computeIfAbsent(instruction.symbol, k -> new Fixups()).add(nextAddress);
+                    address = 0;
+                }
+                words[nextAddress++] = address & 0x7fff;
+            } else {
+                words[nextAddress++] = instruction.encode();
+            }
+        }
+
+        String[] symbols = new String[pending.size()];
+        int[][] sites = new int[pending.size()][];
+        int i = 0;
+        for (Map.Entry<String, Fixups> entry : pending.entrySet()) {
+            symbols[i] = entry.getKey();
+            sites[i] = entry.getValue().sites();
+            i++;
+        }
+        return new ObjectFile(Arrays.copyOf(words, nextAddress), labelNames.toArray(new String[0]),
+                Arrays.copyOf(labelAddresses, labelNames.size()), relocations.sites(), symbols, sites);
+    }
+
+    private void defineLabel(String label, int address, int[] words, Map<String, Fixups> pending) throws AssemblyException {
+        if (symbolTable.putIfAbsent(label, address) != -1) {
+            throw new AssemblyException("label " + label + " must be unique");
+        }
+        Fixups fixups = pending.remove(label);
+        if (fixups != null) {
+            fixups.patch(words, address);
+        }
+    }
+
+    /**
+     * The references still pending are variables, allocate them from 16 in the order of their first use,
+     * return the number of variables.
+     */
+    private int allocateVariables(int[] words, Map<String, Fixups> pending) {
+        int nextVarAddress = 16;
+        for (Map.Entry<String, Fixups> entry : pending.entrySet()) {
+            symbolTable.addEntry(entry.getKey(), nextVarAddress); // allocate memory address for var
+            entry.getValue().patch(words, nextVarAddress);
+            nextVarAddress++;
+        }
+        return pending.size();
+    }
+
+    private void countSymbols(int instructions, int variables) {
+        stats.count("instructions", instructions);
+        stats.count("labels", symbolTable.size() - predefinedSymbols - variables);
+        stats.count("variables", variables);
+    }
+
+    /**
+     * Return the machine code of the current C_COMMAND: 111 comp dest jump.
+     */
+    static int encodeC(Parser parser) throws AssemblyException {
+        int instruction = Code.cInstruction(parser.destKey(), parser.compKey(), parser.jumpKey());
+        if (instruction == -1) { // go the String way to report the invalid mnemonic
+            Code.dest(parser.dest());
+            Code.comp(parser.comp());
+            Code.jump(parser.jump());
+            throw new IllegalStateException("bug, invalid C-instruction: " + parser.dest() + "=" + parser.comp() + ";" + parser.jump());
+        }
+        return instruction;
+    }
+
+    /**
+     * Return the address of the current A_COMMAND if it's a number or a symbol in the table,
+     * otherwise -1. The symbol is looked up in the parser's buffer, no String is created.
+     */
+    int resolve(Parser parser) {
+        byte[] buf = parser.buffer();
+        int offset = parser.symbolOffset();
+        int length = parser.symbolLength();
+        int address = parseAddress(buf, offset, length);
+        if (address == -1) {
+            address = symbolTable.getOrDefault(buf, offset, length, -1);
+        }
+        return address;
+    }
+
+    /**
+     * The same as parseAddress(String) where the symbol is buf[offset, offset + length).
+     */
+    static int parseAddress(byte[] buf, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        boolean negative = false;
+        if (length > 1 && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 10) { // there's no int of more than 10 digits
+            return -1;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return -1;
+        }
+        return (int) value;
+    }
+
+    /**
+     * Return the value of a decimal address, or -1 if it's a symbol.
+     */
+    static int parseAddress(String symbol) {
+        try {
+            return Integer.parseInt(symbol); // symbol may be a number
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Buffer indexes of the A-instructions waiting for the address of the same symbol.
+     */
+    private static final class Fixups {
+
+        private int[] sites = new int[4];
+
+        private int size = 0;
+
+        void add(int site) {
+            if (size == sites.length) {
+                sites = Arrays.copyOf(sites, size * 2);
+            }
+            sites[size++] = site;
+        }
+
+        void addAll(Fixups fixups) {
+            for (int i = 0; i < fixups.size; i++) {
+                add(fixups.sites[i]);
+            }
+        }
+
+        int[] sites() {
+            return Arrays.copyOf(sites, size);
+        }
+
+        void patch(int[] words, int address) {
+            for (int i = 0; i < size; i++) {
+                words[sites[i]] = address & 0x7fff;
+            }
+        }
+    }
+
+    private static void printReports(HackAssembler assembler, boolean stats, String statsJson) throws IOException {
+        if (assembler.eliminator != null) {
+            System.err.print(assembler.deadCodeReport());
+        }
+        if (assembler.optimizer != null) {
+            System.err.print(assembler.optimizerReport());
+        }
+        if (stats) {
+            System.err.print(assembler.stats.toText());
+        }
+        if (statsJson != null) {
+            if (statsJson.isEmpty()) {
+                System.err.println(assembler.stats.toJson());
+            } else {
+                try (Writer writer = new FileWriter(statsJson)) {
+                    writer.write(assembler.stats.toJson());
+                    writer.write('\n');
+                }
+            }
         }
-        return sb.reverse().toString();
     }
 
     public static void main(String[] args) {
         if (args.length == 0) {
-            System.err.println("Usage: java -jar hack-assembler.jar foo.asm");
+            System.err.println("Usage: java -jar hack-assembler.jar [--two-pass | --parallel[=threads] | --optimize | --dce] [--binary | --binary-header | --object] foo.asm|-");
+            System.err.println("       - reads the program from stdin and writes the ROM to stdout");
+            System.err.println("       --object writes foo.hobj to be linked by HackLinker");
+            System.err.println("       --stats prints the time of every phase and the counters to stderr,");
+            System.err.println("       --stats-json[=file] prints them as JSON to stderr or the file");
             System.exit(0);
         }
+        boolean twoPass = false;
+        boolean optimize = false;
+        boolean object = false;
+        boolean dce = false;
+        boolean stats = false;
+        String statsJson = null; // "" for stderr
+        int parallelism = 0;
+        RomWriter.Format format = RomWriter.Format.TEXT;
+        for (int i = 0; i < args.length - 1; i++) {
+            switch (args[i]) {
+                case "--two-pass":
+                    twoPass = true;
+                    break;
+                case "--optimize":
+                    optimize = true;
+                    break;
+                case "--dce":
+                    dce = true;
+                    break;
+                case "--stats":
+                    stats = true;
+                    break;
+                case "--stats-json":
+                    statsJson = "";
+                    break;
+                case "--object":
+                    object = true;
+                    break;
+                case "--binary":
+                    format = RomWriter.Format.BINARY;
+                    break;
+                case "--binary-header":
+                    format = RomWriter.Format.BINARY_WITH_HEADER;
+                    break;
+                case "--parallel":
+                    parallelism = Runtime.getRuntime().availableProcessors();
+                    break;
+                default:
+                    if (args[i].startsWith("--parallel=")) {
+                        parallelism = Integer.parseInt(args[i].substring("--parallel=".length()));
+                        break;
+                    }
+                    if (args[i].startsWith("--stats-json=")) {
+                        statsJson = args[i].substring("--stats-json=".length());
+                        break;
+                    }
+                    System.err.println("unknown option " + args[i]);
+                    System.exit(0);
+            }
+        }
         try {
-            HackAssembler assembler = new HackAssembler(new File(args[0]));
-            assembler.setupSymbolTable();
-            assembler.genCode();
+            if ((optimize || dce) && (twoPass || parallelism > 0)) {
+                throw new IllegalArgumentException("--optimize and --dce cannot be used with --two-pass or --parallel");
+            }
+            if (dce && object) {
+                throw new IllegalArgumentException("--dce cannot be used with --object");
+            }
+            if (object && (twoPass || parallelism > 0 || args[args.length - 1].equals("-"))) {
+                throw new IllegalArgumentException("--object cannot be used with --two-pass, --parallel or stdin");
+            }
+            if (args[args.length - 1].equals("-")) {
+                if (twoPass) {
+                    throw new IOException("--two-pass cannot read from stdin");
+                }
+                HackAssembler assembler = new HackAssembler();
+                assembler.setOptimize(optimize);
+                assembler.setEliminateDeadCode(dce);
+                int[] words;
+                if (parallelism > 0) {
+                    assembler.stats.begin("read");
+                    words = assembler.encodeParallel(readAll(System.in), parallelism);
+                } else {
+                    words = assembler.encode(new Parser(System.in, false));
+                }
+                assembler.stats.begin("write");
+                write(words, new RomWriter(System.out, format));
+                assembler.stats.end();
+                printReports(assembler, stats, statsJson);
+                return;
+            }
+            HackAssembler assembler = new HackAssembler(new File(args[args.length - 1]));
+            assembler.setFormat(format);
+            assembler.setOptimize(optimize);
+            assembler.setEliminateDeadCode(dce);
+            if (object) {
+                assembler.assembleObject();
+            } else if (twoPass) {
+                assembler.setupSymbolTable();
+                assembler.genCode();
+            } else if (parallelism > 0) {
+                assembler.assembleParallel(parallelism);
+            } else {
+                assembler.assemble();
+            }
+            printReports(assembler, stats, statsJson);
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("convert hack asm to hack machine code failed");
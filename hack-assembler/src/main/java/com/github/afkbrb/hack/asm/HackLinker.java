@@ -0,0 +1,145 @@
+package com.github.afkbrb.hack.asm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Link object files into one ROM image:
+ * 1. The modules are laid out in the given order, a prefix sum gives the base of every module;
+ * 2. The labels of all modules are added to the symbol table with their global addresses,
+ *    the relocated words get the base of their module added. The table starts with the
+ *    pre-defined symbols, so a label named R0 or SCREEN is rejected like the assembler does;
+ * 3. Walk the symbols module by module, a symbol is a label of some module, or else a variable,
+ *    which is allocated from 16.
+ * This is the order the assembler sees the symbols in when the modules are concatenated,
+ * so the output is the same as assembling the concatenated asm files.
+ *
+ * An asm file can be given in place of its object file, it's (re)assembled only if
+ * the object file is missing or older, so unchanged modules are only relinked.
+ */
+public class HackLinker {
+
+    private final List<ObjectFile> modules = new ArrayList<>();
+
+    private final List<String> names = new ArrayList<>();
+
+    private final SymbolTable symbolTable = new SymbolTable();
+
+    public HackLinker() {
+        HackAssembler.addPredefinedSymbols(symbolTable);
+    }
+
+    /**
+     * Add a module, file is a .hobj or a .asm file.
+     */
+    public void add(File file) throws IOException, AssemblyException {
+        if (!file.getName().endsWith(ObjectFile.EXTENSION)) {
+            HackAssembler assembler = new HackAssembler(file);
+            File objectFile = assembler.objectFile();
+            if (!objectFile.exists() || objectFile.lastModified() < file.lastModified()) {
+                assembler.assembleObject();
+            }
+            file = objectFile;
+        }
+        modules.add(ObjectFile.read(file));
+        names.add(file.getName());
+    }
+
+    /**
+     * Return the linked program.
+     */
+    public int[] link() throws AssemblyException {
+        int[] bases = new int[modules.size()];
+        int base = 0;
+        for (int m = 0; m < modules.size(); m++) {
+            bases[m] = base;
+            base += modules.get(m).words.length;
+        }
+
+        for (int m = 0; m < modules.size(); m++) {
+            ObjectFile module = modules.get(m);
+            for (int i = 0; i < module.labels.length; i++) {
+                if (symbolTable.putIfAbsent(module.labels[i], bases[m] + module.labelAddresses[i]) != -1) {
+                    throw new AssemblyException("label " + module.labels[i] + " of " + names.get(m) + " must be unique");
+                }
+            }
+        }
+
+        int[] words = new int[base];
+        int nextVarAddress = 16;
+        for (int m = 0; m < modules.size(); m++) {
+            ObjectFile module = modules.get(m);
+            System.arraycopy(module.words, 0, words, bases[m], module.words.length);
+            for (int site : module.relocations) {
+                words[bases[m] + site] = (words[bases[m] + site] + bases[m]) & 0x7fff;
+            }
+            for (int i = 0; i < module.symbols.length; i++) {
+                int address = symbolTable.putIfAbsent(module.symbols[i], nextVarAddress);
+                if (address == -1) { // allocate memory address for var
+                    address = nextVarAddress;
+                    nextVarAddress++;
+                }
+                for (int site : module.sites[i]) {
+                    words[bases[m] + site] = address & 0x7fff;
+                }
+            }
+        }
+        return words;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java -cp hack-assembler.jar com.github.afkbrb.hack.asm.HackLinker [--binary | --binary-header] [-o out] foo.hobj|foo.asm...");
+        System.exit(0);
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            usage();
+        }
+        RomWriter.Format format = RomWriter.Format.TEXT;
+        String output = null;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--binary":
+                    format = RomWriter.Format.BINARY;
+                    break;
+                case "--binary-header":
+                    format = RomWriter.Format.BINARY_WITH_HEADER;
+                    break;
+                case "-o":
+                    if (i + 1 == args.length) {
+                        usage();
+                    }
+                    output = args[++i];
+                    break;
+                default:
+                    files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            usage();
+        }
+        try {
+            HackLinker linker = new HackLinker();
+            for (File file : files) {
+                linker.add(file);
+            }
+            if (output == null) { // named after the first module
+                String path = files.get(0).getPath();
+                output = path.substring(0, path.lastIndexOf('.')) + format.extension();
+            }
+            try (RomWriter writer = new RomWriter(new File(output), format)) {
+                for (int word : linker.link()) {
+                    writer.write(word);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("link hack object files failed");
+            System.exit(0);
+        }
+    }
+}
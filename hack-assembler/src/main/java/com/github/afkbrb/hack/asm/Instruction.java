@@ -0,0 +1,155 @@
+package com.github.afkbrb.hack.asm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.afkbrb.hack.asm.Parser.CommandType.*;
+
+/**
+ * One command of an asm program held in memory, for the passes that rewrite the program
+ * before it's encoded. Absent dest and jump are "null", the same as Parser.
+ */
+final class Instruction {
+
+    final Parser.CommandType type;
+
+    final String symbol; // A_COMMAND and L_COMMAND
+
+    final String dest;
+
+    final String comp;
+
+    final String jump;
+
+    private Instruction(Parser.CommandType type, String symbol, String dest, String comp, String jump) {
+        this.type = type;
+        this.symbol = symbol;
+        this.dest = dest;
+        this.comp = comp;
+        this.jump = jump;
+    }
+
+    static Instruction address(String symbol) {
+        return new Instruction(A_COMMAND, symbol, null, null, null);
+    }
+
+    static Instruction label(String symbol) {
+        return new Instruction(L_COMMAND, symbol, null, null, null);
+    }
+
+    static Instruction compute(String dest, String comp, String jump) {
+        return new Instruction(C_COMMAND, null, dest, comp, jump);
+    }
+
+    /**
+     * Read the whole program, the C-instructions are checked here so that
+     * an invalid mnemonic is still reported with its line.
+     */
+    static List<Instruction> read(Parser parser) throws IOException, AssemblyException {
+        List<Instruction> program = new ArrayList<>();
+        parser.advance();
+        while (parser.hasMoreCommands()) {
+            if (parser.commandType() == A_COMMAND) {
+                program.add(address(parser.symbol()));
+            } else if (parser.commandType() == L_COMMAND) {
+                program.add(label(parser.symbol()));
+            } else {
+                HackAssembler.encodeC(parser);
+                program.add(compute(parser.dest(), parser.comp(), parser.jump()));
+            }
+            parser.advance();
+        }
+        return program;
+    }
+
+    /**
+     * Return N if the @N at i may hold a ROM address, -1 otherwise. A label counts on every
+     * use, a number only when it's used like an address of code: the next instruction jumps
+     * to it, or copies it into D or memory for a jump later (@5, D=A, @R14, M=D).
+     * That catches every constant copied into D too, so it errs on the side of keeping code.
+     */
+    static int codeAddress(List<Instruction> program, int i) {
+        Instruction instruction = program.get(i);
+        if (instruction.type != A_COMMAND || !Character.isDigit(instruction.symbol.charAt(0))) {
+            return -1;
+        }
+        for (int j = i + 1; j < program.size(); j++) {
+            Instruction next = program.get(j);
+            if (next.type == L_COMMAND) {
+                continue;
+            }
+            boolean jump = next.isJump() && !next.writes('A');
+            boolean saved = next.reads('A') && (next.writes('D') || next.writes('M'));
+            if (!jump && !saved) {
+                return -1;
+            }
+            int address = HackAssembler.parseAddress(instruction.symbol);
+            return address < 0 ? Integer.MAX_VALUE : address;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the index in program of the instruction at ROM address,
+     * the last index if the program is shorter.
+     */
+    static int indexOf(List<Instruction> program, int address) {
+        int words = 0;
+        for (int i = 0; i < program.size(); i++) {
+            if (program.get(i).type != L_COMMAND && words++ == address) {
+                return i;
+            }
+        }
+        return program.size() - 1;
+    }
+
+    /**
+     * Is this the C-instruction dest=comp without jump?
+     */
+    boolean is(String dest, String comp) {
+        return type == C_COMMAND && this.dest.equals(dest) && this.comp.equals(comp) && !isJump();
+    }
+
+    boolean isJump() {
+        return type == C_COMMAND && !jump.equals("null");
+    }
+
+    /**
+     * Does dest contain register r? r is one of 'A', 'D' and 'M'.
+     */
+    boolean writes(char r) {
+        return type == C_COMMAND && dest.indexOf(r) >= 0;
+    }
+
+    /**
+     * Does comp read register r? r is one of 'A', 'D' and 'M'.
+     */
+    boolean reads(char r) {
+        return type == C_COMMAND && comp.indexOf(r) >= 0;
+    }
+
+    /**
+     * Return the machine code of a C-instruction.
+     */
+    int encode() {
+        return Code.cInstruction(Code.key(dest), Code.key(comp), Code.key(jump));
+    }
+
+    @Override
+    public String toString() {
+        if (type == A_COMMAND) {
+            return "@" + symbol;
+        } else if (type == L_COMMAND) {
+            return "(" + symbol + ")";
+        }
+        String s = comp;
+        if (!dest.equals("null")) {
+            s = dest + "=" + s;
+        }
+        if (!jump.equals("null")) {
+            s = s + ";" + jump;
+        }
+        return s;
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.afkbrb.hack.asm;
+
+import java.io.*;
+
+/**
+ * A separately assembled module, see HackLinker.
+ *
+ * All big-endian:
+ *   magic "HOBJ" (4 bytes)
+ *   words:       count (4 bytes), the encoded instructions (2 bytes each)
+ *   labels:      count (4 bytes), (name, module-relative address (4 bytes)) for every label
+ *   relocations: count (4 bytes), the sites holding a module-relative address (4 bytes each)
+ *   symbols:     count (4 bytes), (name, site count (4 bytes), sites (4 bytes each)) for every symbol
+ *                that's neither pre-defined nor a label of this module, in the order of first use
+ * The names are written with DataOutputStream.writeUTF. A symbol is a label of another module,
+ * or else a variable, which is only known when linking, its sites are 0 until then.
+ */
+final class ObjectFile {
+
+    static final int MAGIC = 0x484f424a; // "HOBJ"
+
+    static final String EXTENSION = ".hobj";
+
+    final int[] words;
+
+    final String[] labels;
+
+    final int[] labelAddresses;
+
+    final int[] relocations;
+
+    final String[] symbols;
+
+    final int[][] sites;
+
+    ObjectFile(int[] words, String[] labels, int[] labelAddresses, int[] relocations, String[] symbols, int[][] sites) {
+        this.words = words;
+        this.labels = labels;
+        this.labelAddresses = labelAddresses;
+        this.relocations = relocations;
+        this.symbols = symbols;
+        this.sites = sites;
+    }
+
+    void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(words.length);
+            for (int word : words) {
+                out.writeShort(word);
+            }
+            out.writeInt(labels.length);
+            for (int i = 0; i < labels.length; i++) {
+                out.writeUTF(labels[i]);
+                out.writeInt(labelAddresses[i]);
+            }
+            writeInts(out, relocations);
+            out.writeInt(symbols.length);
+            for (int i = 0; i < symbols.length; i++) {
+                out.writeUTF(symbols[i]);
+                writeInts(out, sites[i]);
+            }
+        }
+    }
+
+    static ObjectFile read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not an object file");
+            }
+            int[] words = new int[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readUnsignedShort();
+            }
+            String[] labels = new String[in.readInt()];
+            int[] labelAddresses = new int[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = in.readUTF();
+                labelAddresses[i] = in.readInt();
+            }
+            int[] relocations = readInts(in);
+            String[] symbols = new String[in.readInt()];
+            int[][] sites = new int[symbols.length][];
+            for (int i = 0; i < symbols.length; i++) {
+                symbols[i] = in.readUTF();
+                sites[i] = readInts(in);
+            }
+            return new ObjectFile(words, labels, labelAddresses, relocations, symbols, sites);
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] ints) throws IOException {
+        out.writeInt(ints.length);
+        for (int n : ints) {
+            out.writeInt(n);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] ints = new int[in.readInt()];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = in.readInt();
+        }
+        return ints;
+    }
+}
@@ -0,0 +1,200 @@
+package com.github.afkbrb.hack.asm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static com.github.afkbrb.hack.asm.Parser.CommandType.*;
+
+/**
+ * Assemble a program on a ForkJoinPool:
+ * 1. Split the source into line-aligned chunks, parse and encode them concurrently.
+ *    Labels get chunk-relative addresses, the references to symbols that are not
+ *    pre-defined are recorded to be patched later;
+ * 2. A prefix sum over the chunk sizes gives the base address of every chunk, the labels
+ *    are added to the symbol table with their global addresses;
+ * 3. Walk the references chunk by chunk and allocate the unknown symbols from 16, which is
+ *    the order the sequential assembler sees them in, so the variables get the same addresses;
+ * 4. Copy the chunks into the ROM and patch the references concurrently.
+ */
+final class ParallelAssembler {
+
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+
+    private final SymbolTable symbolTable;
+
+    private final ForkJoinPool pool;
+
+    private final Stats stats; // counts the allocations of the workers
+
+    private int variables;
+
+    ParallelAssembler(SymbolTable symbolTable, ForkJoinPool pool, Stats stats) {
+        this.symbolTable = symbolTable;
+        this.pool = pool;
+        this.stats = stats;
+    }
+
+    /**
+     * Return the encoded instructions of source, note that the comps are compacted in place.
+     */
+    int[] assemble(byte[] source) throws AssemblyException {
+        List<Chunk> chunks = split(source);
+        invokeAll(chunks, Chunk::encode);
+
+        int base = 0;
+        for (Chunk chunk : chunks) {
+            chunk.base = base;
+            for (int i = 0; i < chunk.labels.size(); i++) {
+                String label = chunk.labels.get(i);
+                if (symbolTable.putIfAbsent(label, base + chunk.labelAddresses[i]) != -1) {
+                    throw new AssemblyException("label " + label + " must be unique");
+                }
+            }
+            base += chunk.size;
+        }
+
+        int nextVarAddress = 16;
+        for (Chunk chunk : chunks) {
+            for (String symbol : chunk.refSymbols) {
+                if (symbolTable.putIfAbsent(symbol, nextVarAddress) == -1) { // allocate memory address for var
+                    nextVarAddress++;
+                }
+            }
+        }
+        variables = nextVarAddress - 16;
+
+        int[] words = new int[base];
+        invokeAll(chunks, chunk -> chunk.copyTo(words));
+        return words;
+    }
+
+    /**
+     * Return the number of variables allocated by assemble().
+     */
+    int variables() {
+        return variables;
+    }
+
+    private List<Chunk> split(byte[] source) {
+        int chunkCount = Math.max(1, Math.min(pool.getParallelism() * 4, source.length / MIN_CHUNK_SIZE));
+        int chunkSize = source.length / chunkCount;
+        List<Chunk> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < source.length) {
+            int end = Math.min(source.length, start + chunkSize);
+            while (end < source.length && source[end - 1] != '\n') {
+                end++;
+            }
+            chunks.add(new Chunk(source, start, end - start));
+            start = end;
+        }
+        return chunks;
+    }
+
+    private void invokeAll(List<Chunk> chunks, ChunkTask task) throws AssemblyException {
+        List<Callable<Void>> callables = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            callables.add(stats.track(() -> {
+                task.run(chunk);
+                return null;
+            }));
+        }
+        try {
+            for (Future<Void> future : pool.invokeAll(callables)) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            // ForkJoinPool may wrap the exception of the task in RuntimeExceptions
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof AssemblyException) {
+                    throw (AssemblyException) cause;
+                }
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private interface ChunkTask {
+        void run(Chunk chunk) throws IOException, AssemblyException;
+    }
+
+    private final class Chunk {
+
+        private final byte[] source;
+        private final int offset;
+        private final int length;
+
+        private int[] words = new int[1024];
+        private int size = 0;
+        private int base;
+
+        private final List<String> labels = new ArrayList<>();
+        private int[] labelAddresses = new int[16];
+
+        private final List<String> refSymbols = new ArrayList<>();
+        private int[] refSites = new int[64];
+
+        Chunk(byte[] source, int offset, int length) {
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Only the pre-defined symbols are in the symbol table now, everything else is
+         * left as a reference, it may be a label of another chunk or a variable.
+         */
+        void encode() throws IOException, AssemblyException {
+            Parser parser = new Parser(source, offset, length, false);
+            parser.advance();
+            while (parser.hasMoreCommands()) {
+                if (parser.commandType() == L_COMMAND) {
+                    if (labels.size() == labelAddresses.length) {
+                        labelAddresses = Arrays.copyOf(labelAddresses, labelAddresses.length * 2);
+                    }
+                    labelAddresses[labels.size()] = size;
+                    labels.add(parser.symbol());
+                } else {
+                    if (size == words.length) {
+                        words = Arrays.copyOf(words, words.length * 2);
+                    }
+                    if (parser.commandType() == A_COMMAND) {
+                        int address = HackAssembler.parseAddress(parser.buffer(), parser.symbolOffset(), parser.symbolLength());
+                        if (address == -1) {
+                            address = symbolTable.getOrDefault(parser.buffer(), parser.symbolOffset(), parser.symbolLength(), -1);
+                        }
+                        if (address == -1) {
+                            if (refSymbols.size() == refSites.length) {
+                                refSites = Arrays.copyOf(refSites, refSites.length * 2);
+                            }
+                            refSites[refSymbols.size()] = size;
+                            refSymbols.add(parser.symbol());
+                            address = 0;
+                        }
+                        words[size] = address & 0x7fff;
+                    } else {
+                        words[size] = HackAssembler.encodeC(parser);
+                    }
+                    size++;
+                }
+                parser.advance();
+            }
+        }
+
+        void copyTo(int[] rom) {
+            System.arraycopy(words, 0, rom, base, size);
+            for (int i = 0; i < refSymbols.size(); i++) {
+                rom[base + refSites[i]] = symbolTable.getAddress(refSymbols.get(i)) & 0x7fff;
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.github.afkbrb.hack.asm;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import static com.github.afkbrb.hack.asm.Parser.CommandType.*;
 
@@ -9,12 +11,41 @@ import static com.github.afkbrb.hack.asm.Parser.CommandType.*;
  */
 public class Parser implements AutoCloseable {
 
-    private final BufferedReader reader;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final long MAP_THRESHOLD = 1 << 20; // map the big files instead of reading them
+
+    private final InputStream in;
+
+    private final Reader reader; // either in or reader is used
+
+    private char[] chars; // for reader only
+
+    // Lines are scanned in place: buf[pos, limit) holds the bytes not consumed yet,
+    // and the current command is kept as offsets into buf, no String is created per line.
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private int lineStart; // start of the line returned by nextLine()
 
     private CommandType commandType;
 
-    private String symbol;
+    private int symbolOffset;
+    private int symbolLength;
+
+    private int destKey;
+    private int compKey;
+    private int jumpKey;
+    private int destOffset;
+    private int destLength;
+    private int compOffset;
+    private int compLength;
+    private int jumpOffset;
+    private int jumpLength;
 
+    // created on demand by the String accessors
+    private String symbol;
     private String dest;
     private String comp;
     private String jump;
@@ -33,86 +64,209 @@ public class Parser implements AutoCloseable {
      * Open the input file/stream and get ready to parse it.
      */
     public Parser(File source, boolean labelOnly) throws IOException {
+        this(source, labelOnly, MAP_THRESHOLD);
+    }
+
+    /**
+     * The same, files of mapThreshold bytes or more are mapped.
+     */
+    Parser(File source, boolean labelOnly, long mapThreshold) throws IOException {
         assert source != null;
         assert !source.isDirectory();
         assert source.canRead();
         this.labelOnly = labelOnly;
-        reader = new BufferedReader(new FileReader(source));
+        in = source.length() >= mapThreshold ? new MappedInputStream(source) : new FileInputStream(source);
+        reader = null;
+    }
+
+    public Parser(InputStream source, boolean labelOnly) {
+        this.labelOnly = labelOnly;
+        in = source;
+        reader = null;
+    }
+
+    /**
+     * The chars are narrowed to bytes, assembly is ASCII and anything else can only be in comments.
+     */
+    public Parser(Reader source, boolean labelOnly) {
+        this.labelOnly = labelOnly;
+        in = null;
+        reader = source;
+    }
+
+    /**
+     * Parse source[offset, offset + length) in place, it must only contain whole lines.
+     * Note that the parser compacts the comps in the array.
+     */
+    Parser(byte[] source, int offset, int length, boolean labelOnly) {
+        this.labelOnly = labelOnly;
+        in = null;
+        reader = null;
+        buf = source;
+        pos = offset;
+        limit = offset + length;
+        eof = true;
     }
 
     public void advance() throws IOException, AssemblyException {
         hasMoreCommands = false;
-        String line;
-        while ((line = reader.readLine()) != null) { // null means EOF reached
+        symbol = dest = comp = jump = null;
+        int start;
+        int end;
+        while (true) {
+            end = nextLine();
+            if (end == -1) return; // EOF reached
+            start = lineStart;
             lineno++;
-            if (line.contains("//")) { // 可能是一个注释一行，也有可能是注释跟在指令后面
-                line = line.substring(0, line.indexOf("//"));
-            }
-            line = line.trim();
-            if (line.length() == 0) {
-                continue;
+            for (int i = start; i < end - 1; i++) { // 可能是一个注释一行，也有可能是注释跟在指令后面
+                if (buf[i] == '/' && buf[i + 1] == '/') {
+                    end = i;
+                    break;
+                }
             }
-            hasMoreCommands = true;
-            break;
+            while (start < end && isBlank(buf[start])) start++;
+            while (end > start && isBlank(buf[end - 1])) end--;
+            if (start < end) break;
         }
-        if (!hasMoreCommands) return;
+        hasMoreCommands = true;
 
-        assert line != null;
-        switch (line.charAt(0)) {
+        switch (buf[start]) {
             case '@':  // A_COMMAND
                 commandType = A_COMMAND;
                 if (labelOnly) { // only care about label?
                     break;
                 }
-                symbol = line.substring(1).trim();
-                // System.out.printf("line: %d, address: %s\n", lineno, symbol); // TODO: delete this line
+                start++;
+                while (start < end && isBlank(buf[start])) start++;
+                symbolOffset = start;
+                symbolLength = end - start;
                 break;
             case '(':  // L_COMMAND
                 commandType = L_COMMAND;
-                if (!labelOnly) {
-                    break;
-                }
-                line = line.substring(1);
-                int index = line.indexOf(')');
-                if (index == -1) {
+                int close = indexOf(')', start + 1, end);
+                if (close == -1) {
                     throw new AssemblyException("expect ')' at line: " + lineno);
                 }
-                line = line.substring(0, index).trim();
-                if (line.length() == 0) {
+                start++;
+                while (start < close && isBlank(buf[start])) start++;
+                while (close > start && isBlank(buf[close - 1])) close--;
+                if (start == close) {
                     throw new AssemblyException("expect a symbol between '(' and ') at line: " + lineno);
                 }
-                symbol = line;
-                // System.out.printf("line: %d, label: %s\n", lineno, symbol); // TODO: delete this line
+                symbolOffset = start;
+                symbolLength = close - start;
                 break;
             default:  // C_COMMAND?
                 commandType = C_COMMAND;
                 if (labelOnly) { // only care about label?
                     break;
                 }
-                if (line.indexOf('=') != -1) {
-                    String[] split = line.split("=");
-                    dest = split[0].trim();
-                    line = split[1];
+                int eq = indexOf('=', start, end);
+                if (eq != -1) {
+                    int destEnd = eq;
+                    while (destEnd > start && isBlank(buf[destEnd - 1])) destEnd--;
+                    destOffset = start;
+                    destLength = destEnd - start;
+                    destKey = Code.key(buf, destOffset, destLength);
+                    start = eq + 1;
                 } else {
-                    dest = "null";
+                    destLength = 0;
+                    destKey = Code.NULL_KEY;
                 }
 
-                if (line.indexOf(';') != -1) {
-                    String[] split = line.split(";");
-                    jump = split[1].trim();
-                    line = split[0];
+                int semicolon = indexOf(';', start, end);
+                if (semicolon != -1) {
+                    int jumpStart = semicolon + 1;
+                    while (jumpStart < end && isBlank(buf[jumpStart])) jumpStart++;
+                    jumpOffset = jumpStart;
+                    jumpLength = end - jumpStart;
+                    jumpKey = Code.key(buf, jumpOffset, jumpLength);
+                    end = semicolon;
                 } else {
-                    jump = "null";
+                    jumpLength = 0;
+                    jumpKey = Code.NULL_KEY;
                 }
 
-                comp = compact(line);
-
-                // System.out.printf("line: %d, dest = %s, comp = %s, jump = %s\n", lineno, dest, comp, jump);
-                hasMoreCommands = true;
+                // compact the comp in place, deleting the whitespace
+                int length = 0;
+                for (int i = start; i < end; i++) {
+                    if (buf[i] != ' ' && buf[i] != '\t') {
+                        buf[start + length++] = buf[i];
+                    }
+                }
+                compOffset = start;
+                compLength = length;
+                for (int i = start + length; i < end; i++) {
+                    buf[i] = ' '; // so that the line still parses the same
+                }
+                compKey = Code.key(buf, compOffset, compLength);
                 break;
         }
     }
 
+    /**
+     * Move to the next line, set lineStart and return the end(exclusive) of it,
+     * or -1 if EOF reached. Only '\n' ends a line, a '\r' before it is trimmed as blank.
+     */
+    private int nextLine() throws IOException {
+        int i = pos;
+        while (true) {
+            while (i < limit) {
+                if (buf[i] == '\n') {
+                    lineStart = pos;
+                    pos = i + 1;
+                    return i;
+                }
+                i++;
+            }
+            if (eof) {
+                if (pos == limit) return -1;
+                lineStart = pos;
+                pos = limit;
+                return limit;
+            }
+            // the line goes beyond the buffer, move it to the front and read more
+            int remaining = limit - pos;
+            if (remaining == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            } else {
+                System.arraycopy(buf, pos, buf, 0, remaining);
+            }
+            i -= pos;
+            pos = 0;
+            limit = remaining;
+            int n = in != null ? in.read(buf, limit, buf.length - limit) : readChars(limit, buf.length - limit);
+            if (n == -1) {
+                eof = true;
+            } else {
+                limit += n;
+            }
+        }
+    }
+
+    private int readChars(int offset, int length) throws IOException {
+        if (chars == null || chars.length < length) {
+            chars = new char[buf.length];
+        }
+        int n = reader.read(chars, 0, length);
+        for (int i = 0; i < n; i++) {
+            char ch = chars[i];
+            buf[offset + i] = (byte) (ch < 0x100 ? ch : '?');
+        }
+        return n;
+    }
+
+    private int indexOf(char ch, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == ch) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isBlank(byte b) {
+        return (b & 0xff) <= ' '; // the same as String.trim()
+    }
+
     /**
      * Are there more lines in the file?
      */
@@ -132,6 +286,9 @@ public class Parser implements AutoCloseable {
      * Should be called only when commandType() is A_COMMAND or L_COMMAND.
      */
     public String symbol() {
+        if (symbol == null) {
+            symbol = new String(buf, symbolOffset, symbolLength, StandardCharsets.ISO_8859_1);
+        }
         return symbol;
     }
 
@@ -140,6 +297,9 @@ public class Parser implements AutoCloseable {
      * Should be called only when commandType() is C_COMMAND
      */
     public String dest() {
+        if (dest == null) {
+            dest = mnemonic(destKey, destOffset, destLength);
+        }
         return dest;
     }
 
@@ -148,6 +308,9 @@ public class Parser implements AutoCloseable {
      * Should be called only when commandType() is C_COMMAND.
      */
     public String comp() {
+        if (comp == null) {
+            comp = mnemonic(compKey, compOffset, compLength);
+        }
         return comp;
     }
 
@@ -156,27 +319,69 @@ public class Parser implements AutoCloseable {
      * Should be called only when commandType() is C_COMMAND.
      */
     public String jump() {
+        if (jump == null) {
+            jump = mnemonic(jumpKey, jumpOffset, jumpLength);
+        }
         return jump;
     }
 
     /**
-     * Delete the whitespace in the string.
+     * Return the number of lines read so far.
      */
-    private static String compact(String str) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < str.length(); i++) {
-            char ch = str.charAt(i);
-            if (ch == ' ' || ch == '\t') {
-                continue;
-            }
-            sb.append(ch);
+    public int lineno() {
+        return lineno;
+    }
+
+    /**
+     * The buffer the slices of the current command point into,
+     * it's only valid until the next advance().
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public int symbolOffset() {
+        return symbolOffset;
+    }
+
+    public int symbolLength() {
+        return symbolLength;
+    }
+
+    /**
+     * Return the interned key of the dest mnemonic, see Code.key().
+     */
+    public int destKey() {
+        return destKey;
+    }
+
+    public int compKey() {
+        return compKey;
+    }
+
+    public int jumpKey() {
+        return jumpKey;
+    }
+
+    /**
+     * Valid mnemonics share the interned Strings of Code, only invalid ones are copied out.
+     */
+    private String mnemonic(int key, int offset, int length) {
+        String mnemonic = Code.mnemonic(key);
+        if (mnemonic == null) {
+            mnemonic = new String(buf, offset, length, StandardCharsets.ISO_8859_1);
         }
-        return sb.toString();
+        return mnemonic;
     }
 
     @Override
     public void close() throws IOException {
-        reader.close();
+        if (in != null) {
+            in.close();
+        }
+        if (reader != null) {
+            reader.close();
+        }
     }
 
     public enum CommandType {
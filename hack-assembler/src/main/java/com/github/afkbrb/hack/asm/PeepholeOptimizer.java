@@ -0,0 +1,231 @@
+package com.github.afkbrb.hack.asm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.afkbrb.hack.asm.Parser.CommandType.*;
+
+/**
+ * Remove the redundant instructions of a program before it's encoded.
+ *
+ * The program is cut into basic blocks at labels and after jumps, nothing is assumed
+ * about the registers at the start of a block, and all of them are live at its end, so
+ * the labels keep their targets. A numeric target only keeps its instruction if nothing
+ * before it moves, so the code up to the last ROM address a number may jump to, see
+ * Instruction.codeAddress, is left as it is. Two passes are repeated until nothing changes:
+ *
+ * forward, what A and D hold is tracked:
+ * - @X while A is already X is dropped;
+ * - M=M+1 followed by AM=M-1 (a push then a pop) becomes A=M, M=M+1 with M=M-1 goes away;
+ * - @SP A=M while A still holds RAM[SP] is dropped;
+ * - D=M and M=D are dropped while D already equals M.
+ *
+ * backward, the liveness of A and D is tracked:
+ * - @X whose value is overwritten before any use is dropped;
+ * - D=comp whose value is overwritten before any use is dropped.
+ *
+ * The stack pointer is assumed never to point to itself, that is, writing
+ * through RAM[SP] doesn't change SP.
+ */
+final class PeepholeOptimizer {
+
+    enum Rule {
+        RELOAD("redundant address reloads"),
+        PUSH_POP("push/pop pairs"),
+        STACK_RELOAD("redundant stack pointer loads"),
+        REDUNDANT_MOVE("redundant D/M moves"),
+        DEAD_A("dead A loads"),
+        DEAD_D("dead D loads");
+
+        private final String description;
+
+        Rule(String description) {
+            this.description = description;
+        }
+    }
+
+    private final int[] hits = new int[Rule.values().length];
+
+    private int wordsBefore;
+
+    private int wordsAfter;
+
+    /**
+     * Return the optimized program, labels are kept as they are.
+     */
+    List<Instruction> optimize(List<Instruction> program) {
+        wordsBefore = words(program);
+        int pinned = -1; // the last index that must not move
+        for (int i = 0; i < program.size(); i++) {
+            int address = Instruction.codeAddress(program, i);
+            if (address >= 0) {
+                pinned = Math.max(pinned, Instruction.indexOf(program, address));
+            }
+        }
+        List<Instruction> out = new ArrayList<>(program.subList(0, pinned + 1));
+        program = program.subList(pinned + 1, program.size());
+        boolean changed = true;
+        while (changed) {
+            int size = program.size();
+            program = backward(forward(program));
+            changed = program.size() != size;
+        }
+        out.addAll(program);
+        wordsAfter = words(out);
+        return out;
+    }
+
+    private List<Instruction> forward(List<Instruction> program) {
+        List<Instruction> out = new ArrayList<>(program.size());
+        String aSymbol = null; // A holds the address of this symbol
+        boolean aStackTop = false; // A holds RAM[SP]
+        boolean dInM = false; // D equals RAM[A]
+        int n = program.size();
+        for (int i = 0; i < n; i++) {
+            Instruction instruction = program.get(i);
+            Instruction next = i + 1 < n ? program.get(i + 1) : null;
+            if (instruction.type == L_COMMAND) {
+                aSymbol = null;
+                aStackTop = false;
+                dInM = false;
+                out.add(instruction);
+                continue;
+            }
+
+            if (instruction.type == A_COMMAND) {
+                if (instruction.symbol.equals(aSymbol)) {
+                    hits[Rule.RELOAD.ordinal()]++;
+                    continue;
+                }
+                if (aStackTop && instruction.symbol.equals("SP") && next != null && next.is("A", "M")) {
+                    hits[Rule.STACK_RELOAD.ordinal()]++;
+                    i++;
+                    continue;
+                }
+                aSymbol = instruction.symbol;
+                aStackTop = false;
+                dInM = false;
+                out.add(instruction);
+                continue;
+            }
+
+            if (instruction.is("M", "M+1") || instruction.is("M", "M-1")) {
+                // skip a reload of the same address in between
+                int j = next != null && next.type == A_COMMAND && next.symbol.equals(aSymbol) ? i + 2 : i + 1;
+                Instruction pop = j < n ? program.get(j) : null;
+                String inverse = instruction.comp.equals("M+1") ? "M-1" : "M+1";
+                if (pop != null && pop.is("M", inverse)) {
+                    hits[Rule.PUSH_POP.ordinal()]++;
+                    i = j;
+                    continue;
+                }
+                if (pop != null && instruction.comp.equals("M+1") && pop.is("AM", "M-1")) {
+                    hits[Rule.PUSH_POP.ordinal()]++;
+                    instruction = Instruction.compute("A", "M", "null");
+                    i = j;
+                }
+            }
+
+            if (dInM && (instruction.is("D", "M") || instruction.is("M", "D"))) {
+                hits[Rule.REDUNDANT_MOVE.ordinal()]++;
+                continue;
+            }
+
+            out.add(instruction);
+            if (instruction.writes('A')) {
+                // AM=comp or A=M leaves RAM[X] in A, where A was X
+                aStackTop = "SP".equals(aSymbol) && (instruction.writes('M') || instruction.comp.equals("M"));
+                aSymbol = null;
+                dInM = false;
+            } else if (instruction.writes('D') && instruction.writes('M')) {
+                dInM = true;
+            } else if (instruction.writes('D')) {
+                dInM = instruction.comp.equals("M") && !isIo(aSymbol);
+            } else if (instruction.writes('M')) {
+                dInM = instruction.comp.equals("D");
+            }
+        }
+        return out;
+    }
+
+    private List<Instruction> backward(List<Instruction> program) {
+        List<Instruction> out = new ArrayList<>(program.size());
+        boolean liveA = true;
+        boolean liveD = true;
+        for (int i = program.size() - 1; i >= 0; i--) {
+            Instruction instruction = program.get(i);
+            if (instruction.type == L_COMMAND) {
+                liveA = true;
+                liveD = true;
+            } else if (instruction.type == A_COMMAND) {
+                if (!liveA) {
+                    hits[Rule.DEAD_A.ordinal()]++;
+                    continue;
+                }
+                liveA = false;
+            } else {
+                if (instruction.isJump()) { // the target may use anything
+                    liveA = true;
+                    liveD = true;
+                } else if (!liveD && instruction.dest.equals("D")) {
+                    hits[Rule.DEAD_D.ordinal()]++;
+                    continue;
+                }
+                liveA = liveA && !instruction.writes('A') || instruction.reads('A') || instruction.reads('M')
+                        || instruction.writes('M') || instruction.isJump();
+                liveD = liveD && !instruction.writes('D') || instruction.reads('D');
+            }
+            out.add(instruction);
+        }
+        for (int i = 0, j = out.size() - 1; i < j; i++, j--) { // it's built backwards
+            out.set(j, out.set(i, out.get(j)));
+        }
+        return out;
+    }
+
+    /**
+     * The keyboard may change between two reads.
+     */
+    private static boolean isIo(String symbol) {
+        if (symbol == null) {
+            return false;
+        }
+        int address = HackAssembler.parseAddress(symbol);
+        return symbol.equals("KBD") || symbol.equals("SCREEN") || address >= 16384;
+    }
+
+    private static int words(List<Instruction> program) {
+        int words = 0;
+        for (Instruction instruction : program) {
+            if (instruction.type != L_COMMAND) {
+                words++;
+            }
+        }
+        return words;
+    }
+
+    int wordsBefore() {
+        return wordsBefore;
+    }
+
+    int wordsAfter() {
+        return wordsAfter;
+    }
+
+    int hits(Rule rule) {
+        return hits[rule.ordinal()];
+    }
+
+    /**
+     * ROM words before and after, and how often every rule applied.
+     */
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("peephole: %d -> %d words (-%.1f%%)%n", wordsBefore, wordsAfter,
+                wordsBefore == 0 ? 0.0 : 100.0 * (wordsBefore - wordsAfter) / wordsBefore));
+        for (Rule rule : Rule.values()) {
+            sb.append(String.format("  %-32s %d%n", rule.description, hits[rule.ordinal()]));
+        }
+        return sb.toString();
+    }
+}
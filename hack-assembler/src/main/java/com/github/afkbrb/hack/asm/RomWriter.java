@@ -0,0 +1,120 @@
+package com.github.afkbrb.hack.asm;
+
+import java.io.*;
+import java.util.zip.CRC32;
+
+/**
+ * Write the machine code words to a ROM image.
+ *
+ * TEXT is the usual .hack file, one 16-character binary string per line.
+ * BINARY is raw big-endian 16-bit words, 2 bytes per instruction.
+ * BINARY_WITH_HEADER puts a 12 bytes header before the words:
+ *   magic "HACK" (4 bytes) | word count (4 bytes) | CRC32 of the words (4 bytes)
+ */
+public class RomWriter implements AutoCloseable {
+
+    public static final int MAGIC = 0x4841434b; // "HACK"
+
+    private final Format format;
+
+    private final OutputStream out;
+
+    private final Writer textWriter;
+
+    private final DataOutputStream dataOut;
+
+    private final ByteArrayOutputStream payload; // the header needs the count and checksum first
+
+    private final char[] line = new char[17];
+
+    private int count = 0;
+
+    private boolean finished = false;
+
+    public RomWriter(File file, Format format) throws IOException {
+        this(new FileOutputStream(file), format);
+    }
+
+    public RomWriter(OutputStream out, Format format) {
+        this.format = format;
+        this.out = new BufferedOutputStream(out);
+        if (format == Format.TEXT) {
+            textWriter = new BufferedWriter(new OutputStreamWriter(this.out));
+            dataOut = null;
+            payload = null;
+            line[16] = '\n';
+        } else if (format == Format.BINARY) {
+            textWriter = null;
+            dataOut = new DataOutputStream(this.out);
+            payload = null;
+        } else {
+            textWriter = null;
+            payload = new ByteArrayOutputStream();
+            dataOut = new DataOutputStream(payload);
+        }
+    }
+
+    /**
+     * Write one 16-bit instruction.
+     */
+    public void write(int word) throws IOException {
+        count++;
+        if (textWriter != null) {
+            for (int bit = 15; bit >= 0; bit--) {
+                line[bit] = (char) ('0' + (word & 1));
+                word >>>= 1;
+            }
+            textWriter.write(line);
+        } else {
+            dataOut.writeShort(word);
+        }
+    }
+
+    /**
+     * Write out everything without closing the underlying stream,
+     * nothing should be written after this.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (format == Format.BINARY_WITH_HEADER) {
+            byte[] words = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(words, 0, words.length);
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeInt(count);
+            header.writeInt((int) crc.getValue());
+            header.write(words);
+            header.flush();
+        } else if (textWriter != null) {
+            textWriter.flush();
+        } else {
+            dataOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    public enum Format {
+        TEXT(".hack"),
+        BINARY(".bin"),
+        BINARY_WITH_HEADER(".bin");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String extension() {
+            return extension;
+        }
+    }
+}
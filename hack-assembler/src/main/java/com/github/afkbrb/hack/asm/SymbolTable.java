@@ -1,30 +1,148 @@
 package com.github.afkbrb.hack.asm;
 
-import java.util.HashMap;
-import java.util.Map;
-
+/**
+ * An open addressing table from symbol to address, the addresses are stored
+ * as ints without boxing. A symbol can also be looked up by an ASCII slice of
+ * a byte[], its hash is the same as the one of the String.
+ */
 public class SymbolTable {
 
-    private final Map<String, Integer> map = new HashMap<>();
+    private String[] keys = new String[64];
+
+    private int[] hashes = new int[64];
+
+    private int[] values = new int[64];
+
+    private int size = 0;
 
     /**
      * Add the pair(symbol, address) to the table.
      */
     public void addEntry(String symbol, int address) {
-        map.put(symbol, address);
+        int slot = slot(symbol, symbol.hashCode());
+        if (keys[slot] == null) {
+            insert(slot, symbol, address);
+        } else {
+            values[slot] = address;
+        }
+    }
+
+    /**
+     * Add the pair(symbol, address) only if symbol is not in the table,
+     * return the address already associated with symbol, or -1 if it's added.
+     */
+    public int putIfAbsent(String symbol, int address) {
+        int slot = slot(symbol, symbol.hashCode());
+        if (keys[slot] != null) {
+            return values[slot];
+        }
+        insert(slot, symbol, address);
+        return -1;
     }
 
     /**
      * Does the symbol table contain the given symbol?
      */
     public boolean contains(String symbol) {
-        return map.containsKey(symbol);
+        return keys[slot(symbol, symbol.hashCode())] != null;
     }
 
     /**
      * Return the address associated with the symbol.
      */
     public int getAddress(String symbol) {
-        return map.get(symbol);
+        int slot = slot(symbol, symbol.hashCode());
+        if (keys[slot] == null) {
+            throw new IllegalArgumentException("symbol " + symbol + " is not in the table");
+        }
+        return values[slot];
+    }
+
+    /**
+     * Return the address associated with the symbol, or defaultAddress if there isn't one.
+     */
+    public int getOrDefault(String symbol, int defaultAddress) {
+        int slot = slot(symbol, symbol.hashCode());
+        return keys[slot] != null ? values[slot] : defaultAddress;
+    }
+
+    /**
+     * The same as getOrDefault(String, int) where the symbol is buf[offset, offset + length).
+     */
+    public int getOrDefault(byte[] buf, int offset, int length, int defaultAddress) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + (buf[i] & 0xff);
+        }
+        int mask = keys.length - 1;
+        int slot = mix(hash) & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && equals(keys[slot], buf, offset, length)) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return defaultAddress;
+    }
+
+    /**
+     * Return the number of symbols in the table.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the slot of symbol, or the empty slot where it would be.
+     */
+    private int slot(String symbol, int hash) {
+        int mask = keys.length - 1;
+        int slot = mix(hash) & mask;
+        while (keys[slot] != null && (hashes[slot] != hash || !keys[slot].equals(symbol))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int slot, String symbol, int address) {
+        keys[slot] = symbol;
+        hashes[slot] = symbol.hashCode();
+        values[slot] = address;
+        if (++size * 2 > keys.length) { // keep the load factor under 0.5
+            resize();
+        }
+    }
+
+    private void resize() {
+        String[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        int[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        hashes = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = slot(oldKeys[i], oldHashes[i]);
+                keys[slot] = oldKeys[i];
+                hashes[slot] = oldHashes[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(String symbol, byte[] buf, int offset, int length) {
+        if (symbol.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (symbol.charAt(i) != (buf[offset + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
     }
 }
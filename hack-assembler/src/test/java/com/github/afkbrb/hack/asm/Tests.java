@@ -2,6 +2,21 @@ package com.github.afkbrb.hack.asm;
 
 import org.junit.Test;
 
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class Tests {
 
     @Test
@@ -26,6 +41,341 @@ public class Tests {
         System.out.println(a.trim());
     }
 
+    @Test
+    public void singlePassTest() throws IOException, AssemblyException {
+        File asmFile = writeAsm("@i\nM=1 // i = 1\n(LOOP)\n@i\nD=M\n@END\nD;JGT\n@sum\nM=D+M\n@LOOP\n0;JMP\n(END)\n@END\n0;JMP\n");
+        File hackFile = new File(asmFile.getParent(), asmFile.getName().replace(".asm", ".hack"));
+
+        HackAssembler twoPass = new HackAssembler(asmFile);
+        twoPass.setupSymbolTable();
+        twoPass.genCode();
+        byte[] expected = Files.readAllBytes(hackFile.toPath());
+
+        new HackAssembler(asmFile).assemble();
+        assertArrayEquals(expected, Files.readAllBytes(hackFile.toPath()));
+    }
+
+    @Test
+    public void binaryFormatTest() throws IOException, AssemblyException {
+        File asmFile = writeAsm("@100\nD=A\n@R0\nM=D\n(END)\n@END\n0;JMP\n");
+        HackAssembler assembler = new HackAssembler(asmFile);
+        assembler.assemble();
+        List<String> lines = Files.readAllLines(assembler.outputFile().toPath());
+
+        assembler = new HackAssembler(asmFile);
+        assembler.setFormat(RomWriter.Format.BINARY_WITH_HEADER);
+        assembler.assemble();
+        assembler.outputFile().deleteOnExit();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(assembler.outputFile()))) {
+            assertEquals(RomWriter.MAGIC, in.readInt());
+            assertEquals(lines.size(), in.readInt());
+            in.readInt(); // checksum
+            for (String line : lines) {
+                assertEquals(Integer.parseInt(line, 2), in.readUnsignedShort());
+            }
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void parserTest() throws IOException, AssemblyException {
+        File asmFile = writeAsm("// comment\r\n  AM = M - 1 ; JNE // x\r\n\t@ R13\r\n( LOOP )\r\n0;JMP");
+        try (Parser parser = new Parser(asmFile)) {
+            parser.advance();
+            assertEquals(Parser.CommandType.C_COMMAND, parser.commandType());
+            assertEquals("AM", parser.dest());
+            assertEquals("M-1", parser.comp());
+            assertEquals("JNE", parser.jump());
+            parser.advance();
+            assertEquals(Parser.CommandType.A_COMMAND, parser.commandType());
+            assertEquals("R13", parser.symbol());
+            parser.advance();
+            assertEquals(Parser.CommandType.L_COMMAND, parser.commandType());
+            assertEquals("LOOP", parser.symbol());
+            parser.advance();
+            assertEquals("null", parser.dest());
+            assertEquals("0", parser.comp());
+            assertEquals("JMP", parser.jump());
+            parser.advance();
+            assertFalse(parser.hasMoreCommands());
+        }
+    }
+
+    @Test
+    public void mappedParserTest() throws IOException, AssemblyException {
+        // several buffers long, so lines are split across the reads of both streams
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 3 * (1 << 16); i++) {
+            sb.append("@R").append(i % 16).append(" // r\r\nD=M\n(L").append(i).append(")\n@L").append(i).append("\nD;JGT\n");
+        }
+        File asmFile = writeAsm(sb.toString());
+        try (Parser streamed = new Parser(asmFile, false); Parser mapped = new Parser(asmFile, false, 0)) {
+            streamed.advance();
+            mapped.advance();
+            while (streamed.hasMoreCommands()) {
+                assertTrue(mapped.hasMoreCommands());
+                assertEquals(streamed.commandType(), mapped.commandType());
+                if (streamed.commandType() == Parser.CommandType.C_COMMAND) {
+                    assertEquals(streamed.dest(), mapped.dest());
+                    assertEquals(streamed.comp(), mapped.comp());
+                    assertEquals(streamed.jump(), mapped.jump());
+                } else {
+                    assertEquals(streamed.symbol(), mapped.symbol());
+                }
+                streamed.advance();
+                mapped.advance();
+            }
+            assertFalse(mapped.hasMoreCommands());
+            assertEquals(streamed.lineno(), mapped.lineno());
+        }
+    }
+
+    @Test
+    public void cInstructionTest() throws AssemblyException {
+        String[] dests = {"null", "M", "D", "MD", "A", "AM", "AD", "AMD", "DA"};
+        String[] comps = {"0", "1", "-1", "D", "!A", "D+1", "1+D", "A-D", "D|M", "M+D"};
+        String[] jumps = {"null", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+        for (String dest : dests) {
+            for (String comp : comps) {
+                for (String jump : jumps) {
+                    int expected = Integer.parseInt("111" + Code.comp(comp) + Code.dest(dest) + Code.jump(jump), 2);
+                    assertEquals(expected, Code.cInstruction(Code.key(dest), Code.key(comp), Code.key(jump)));
+                }
+            }
+        }
+        assertEquals(-1, Code.cInstruction(Code.key("X"), Code.key("0"), Code.NULL_KEY));
+        assertEquals(-1, Code.cInstruction(Code.NULL_KEY, Code.key("D+D"), Code.NULL_KEY));
+        assertEquals(-1, Code.cInstruction(Code.NULL_KEY, Code.key("0"), Code.key("JUMP")));
+    }
+
+    @Test
+    public void parallelTest() throws IOException, AssemblyException {
+        StringBuilder asm = new StringBuilder();
+        for (int i = 0; i < 20000; i++) { // big enough for several chunks
+            asm.append("(L").append(i).append(")\n@L").append((i * 7919) % 20000).append("\nD;JGT\n");
+            asm.append("@var").append(i % 97).append("\nM=D+M // comment\n");
+        }
+        File asmFile = writeAsm(asm.toString());
+        HackAssembler assembler = new HackAssembler(asmFile);
+        assembler.assemble();
+        byte[] expected = Files.readAllBytes(assembler.outputFile().toPath());
+
+        new HackAssembler(asmFile).assembleParallel(4);
+        assertArrayEquals(expected, Files.readAllBytes(assembler.outputFile().toPath()));
+    }
+
+    @Test
+    public void inMemoryTest() throws IOException, AssemblyException {
+        String asm = "@2\nD=A\n@x\nM=D\n(END)\n@END\n0;JMP\n";
+        short[] expected = {2, (short) 0b1110110000010000, 16, (short) 0b1110001100001000, 4, (short) 0b1110101010000111};
+        assertArrayEquals(expected, HackAssembler.assemble(asm));
+        assertArrayEquals(expected, HackAssembler.assemble(new ByteArrayInputStream(asm.getBytes())));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HackAssembler.assemble(new ByteArrayInputStream(asm.getBytes()), out, RomWriter.Format.BINARY);
+        byte[] bytes = out.toByteArray();
+        assertEquals(expected.length * 2, bytes.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], (short) ((bytes[2 * i] << 8) | (bytes[2 * i + 1] & 0xff)));
+        }
+    }
+
+    @Test
+    public void symbolTableTest() {
+        SymbolTable symbolTable = new SymbolTable();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(-1, symbolTable.putIfAbsent("sym" + i, i));
+        }
+        assertEquals(7, symbolTable.putIfAbsent("sym7", 100));
+        symbolTable.addEntry("sym7", 100);
+        assertEquals(100, symbolTable.getAddress("sym7"));
+        assertFalse(symbolTable.contains("sym1000"));
+        byte[] buf = "@sym999;".getBytes();
+        assertEquals(999, symbolTable.getOrDefault(buf, 1, 6, -1));
+        assertEquals(-1, symbolTable.getOrDefault(buf, 0, 7, -1));
+
+        for (String s : new String[]{"0", "123", "-5", "+5", "2147483647", "2147483648", "-2147483648", "12a", "-", "+", "R0"}) {
+            byte[] bytes = ("@" + s).getBytes();
+            assertEquals(s, HackAssembler.parseAddress(s), HackAssembler.parseAddress(bytes, 1, bytes.length - 1));
+        }
+    }
+
+    @Test
+    public void peepholeTest() throws IOException, AssemblyException {
+        // push D, pop D, then dead loads of A and D
+        File asmFile = writeAsm("@SP\nA=M\nM=D\n@SP\nM=M+1\n@SP\nAM=M-1\nD=M\n@R13\nM=D\n@R13\nD=M\n@5\n@6\nD=1\nD=M\n(L)\n@L\n0;JMP\n");
+        HackAssembler assembler = new HackAssembler(asmFile);
+        assembler.setOptimize(true);
+        assembler.assemble();
+        byte[] optimized = Files.readAllBytes(assembler.outputFile().toPath());
+        assertTrue(assembler.optimizerReport().startsWith("peephole: 18 -> 9 words"));
+
+        File expectedFile = writeAsm("@SP\nA=M\nM=D\n@R13\nM=D\n@6\nD=M\n(L)\n@L\n0;JMP\n");
+        HackAssembler expected = new HackAssembler(expectedFile);
+        expected.assemble();
+        assertArrayEquals(Files.readAllBytes(expected.outputFile().toPath()), optimized);
+    }
+
+    @Test
+    public void peepholeNumericJumpTest() throws IOException, AssemblyException {
+        // @4 jumps to D=M, so the reload of R13 before it has to stay, with and without --dce
+        String asm = "@4\n0;JMP\n@R13\n@R13\nD=M\n@R13\n@R13\nM=D\n(END)\n@END\n0;JMP\n";
+        HackAssembler expected = new HackAssembler(writeAsm(asm));
+        expected.assemble();
+        for (boolean dce : new boolean[]{false, true}) {
+            HackAssembler assembler = new HackAssembler(writeAsm(asm));
+            assembler.setOptimize(true);
+            assembler.setEliminateDeadCode(dce);
+            assembler.assemble();
+            assertTrue(assembler.optimizerReport().startsWith("peephole: 10 -> 9 words")); // after D=M only
+            byte[] optimized = Files.readAllBytes(assembler.outputFile().toPath());
+            assertArrayEquals(Arrays.copyOf(Files.readAllBytes(expected.outputFile().toPath()), 5 * 17),
+                    Arrays.copyOf(optimized, 5 * 17));
+        }
+    }
+
+    @Test
+    public void deadCodeTest() throws IOException, AssemblyException {
+        // f is called, its return address is only loaded into D, g is never used,
+        // and nothing falls through after the jumps
+        String asm = "@RET\nD=A\n@f\n0;JMP\n(RET)\n@RET\n0;JMP\n@x\n(g)\n@x\nM=0\n"
+                + "(f)\n@R14\nM=D\nA=M\n0;JMP\nD=0\n";
+        File asmFile = writeAsm(asm);
+        HackAssembler assembler = new HackAssembler(asmFile);
+        assembler.setEliminateDeadCode(true);
+        assembler.assemble();
+        byte[] eliminated = Files.readAllBytes(assembler.outputFile().toPath());
+        assertTrue(assembler.deadCodeReport().startsWith("dead code: 14 -> 10 words"));
+        assertTrue(assembler.deadCodeReport().contains("RET"));
+        assertTrue(assembler.deadCodeReport().contains("g"));
+
+        File expectedFile = writeAsm("@RET\nD=A\n@f\n0;JMP\n(RET)\n@RET\n0;JMP\n(f)\n@R14\nM=D\nA=M\n0;JMP\n");
+        HackAssembler expected = new HackAssembler(expectedFile);
+        expected.assemble();
+        assertArrayEquals(Files.readAllBytes(expected.outputFile().toPath()), eliminated);
+    }
+
+    @Test
+    public void deadCodeNumericJumpTest() throws IOException, AssemblyException {
+        // @3 jumps to D=-1, so D=1 has to stay to keep it at address 3
+        String asm = "@3\n0;JMP\nD=1\nD=-1\n@100\nM=D\n(END)\n@END\n0;JMP\n";
+        File asmFile = writeAsm(asm);
+        HackAssembler assembler = new HackAssembler(asmFile);
+        assembler.setEliminateDeadCode(true);
+        assembler.assemble();
+        assertTrue(assembler.deadCodeReport().startsWith("dead code: 8 -> 8 words"));
+        byte[] eliminated = Files.readAllBytes(assembler.outputFile().toPath());
+        HackAssembler expected = new HackAssembler(writeAsm(asm));
+        expected.assemble();
+        assertArrayEquals(Files.readAllBytes(expected.outputFile().toPath()), eliminated);
+
+        // @7 is saved in R14 and jumped to through it later, so D=1 has to stay as well
+        asm = "@7\nD=A\n@R14\nM=D\nA=M\n0;JMP\nD=1\nD=-1\n(END)\n@END\n0;JMP\n";
+        assembler = new HackAssembler(writeAsm(asm));
+        assembler.setEliminateDeadCode(true);
+        assembler.assemble();
+        assertTrue(assembler.deadCodeReport().startsWith("dead code: 10 -> 10 words"));
+
+        // an address that is only read or written is not a target
+        assembler = new HackAssembler(writeAsm("@2\nD=M\n@END\n0;JMP\nD=1\n(END)\n@END\n0;JMP\n"));
+        assembler.setEliminateDeadCode(true);
+        assembler.assemble();
+        assertTrue(assembler.deadCodeReport().startsWith("dead code: 7 -> 6 words"));
+    }
+
+    @Test
+    public void linkTest() throws IOException, AssemblyException {
+        String main = "@x\nM=1\n(LOOP)\n@f\n0;JMP\n(RET)\n@y\nM=M+1\n@LOOP\n0;JMP\n";
+        String lib = "(f)\n@y\nD=M\n@z\nM=D\n@RET\n0;JMP\n@R13\n";
+        short[] expected = HackAssembler.assemble(main + lib);
+
+        HackLinker linker = new HackLinker();
+        File mainFile = writeAsm(main);
+        linker.add(mainFile); // assembled on demand
+        HackAssembler libAssembler = new HackAssembler(writeAsm(lib));
+        libAssembler.assembleObject();
+        linker.add(libAssembler.objectFile());
+        new File(mainFile.getPath().replace(".asm", ObjectFile.EXTENSION)).deleteOnExit();
+        libAssembler.objectFile().deleteOnExit();
+
+        int[] words = linker.link();
+        assertEquals(expected.length, words.length);
+        for (int i = 0; i < words.length; i++) {
+            assertEquals(expected[i], (short) words[i]);
+        }
+
+        // a label may not take the name of a pre-defined symbol, the same as in one file
+        String screen = "(SCREEN)\n@SCREEN\n0;JMP\n";
+        try {
+            HackAssembler.assemble(main + screen);
+            fail();
+        } catch (AssemblyException e) {
+            assertTrue(e.getMessage().contains("must be unique"));
+        }
+        linker = new HackLinker();
+        linker.add(mainFile);
+        HackAssembler screenAssembler = new HackAssembler(writeAsm(screen));
+        screenAssembler.assembleObject();
+        screenAssembler.objectFile().deleteOnExit();
+        linker.add(screenAssembler.objectFile());
+        try {
+            linker.link();
+            fail();
+        } catch (AssemblyException e) {
+            assertTrue(e.getMessage().contains("must be unique"));
+        }
+    }
+
+    @Test
+    public void statsJsonTest() throws IOException {
+        File asmFile = writeAsm("@i\nM=1\n(LOOP)\n@i\nM=M+1\n@LOOP\n0;JMP\n");
+        for (String mode : new String[]{"--dce", "--parallel=2"}) {
+            File jsonFile = File.createTempFile("stats", ".json");
+            jsonFile.deleteOnExit();
+            HackAssembler.main(new String[]{mode, "--stats-json=" + jsonFile.getPath(), asmFile.getPath()});
+            String json = new String(Files.readAllBytes(jsonFile.toPath()));
+            assertTrue(json.startsWith("{\"tool\":\"hack-assembler\",\"phases_ms\":{"));
+            assertTrue(json.contains("\"write\":"));
+            assertTrue(json.contains("\"counters\":{"));
+            assertEquals("7", jsonValue(json, "lines"));
+            assertEquals("6", jsonValue(json, "instructions"));
+            assertEquals("1", jsonValue(json, "labels"));
+            assertEquals("1", jsonValue(json, "variables"));
+            assertTrue(Double.parseDouble(jsonValue(json, "total_ms")) > 0);
+            assertTrue(Long.parseLong(jsonValue(json, "peak_heap_bytes")) > 0);
+            assertTrue(Long.parseLong(jsonValue(json, "allocated_bytes")) > 0);
+        }
+    }
+
+    @Test
+    public void statsTrackTest() throws Exception {
+        // the bytes allocated by a worker count, not only the ones of the thread of the Stats
+        Stats stats = new Stats("test");
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            pool.submit(stats.track(() -> new byte[1 << 22])).get();
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue(Long.parseLong(jsonValue(stats.toJson(), "allocated_bytes")) >= 1 << 22);
+    }
+
+    static String jsonValue(String json, String key) {
+        Matcher matcher = Pattern.compile("\"" + Pattern.quote(key) + "\":([^,}]+)").matcher(json);
+        assertTrue(key, matcher.find());
+        return matcher.group(1);
+    }
+
+    File writeAsm(String asm) throws IOException {
+        File asmFile = File.createTempFile("test", ".asm");
+        asmFile.deleteOnExit();
+        new File(asmFile.getPath().replace(".asm", ".hack")).deleteOnExit();
+        try (Writer writer = new FileWriter(asmFile)) {
+            writer.write(asm);
+        }
+        return asmFile;
+    }
+
     String intTo15Bits(int n) {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < 15; i++) {
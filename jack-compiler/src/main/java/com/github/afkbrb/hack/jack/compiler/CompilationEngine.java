@@ -737,6 +737,19 @@ public class CompilationEngine implements AutoCloseable {
         }
     }
 
+    // Return the number of lines, tokens and vm commands of the class compiled.
+    int lines() {
+        return tokenizer.lineno();
+    }
+
+    int tokens() {
+        return tokenizer.tokens();
+    }
+
+    int vmCommands() {
+        return vmWriter.commands();
+    }
+
     @Override
     public void close() throws IOException {
         xmlWriter.close();
@@ -1,25 +1,59 @@
 package com.github.afkbrb.hack.jack.compiler;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.Objects;
 
 public class JackCompiler {
 
+    private final Stats stats = new Stats("jack-compiler");
+
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.err.println("Usage: java JackCompiler .jack/dir");
+        if (args.length == 0) {
+            System.err.println("Usage: java JackCompiler [--stats] [--stats-json[=file]] .jack/dir");
             return;
         }
-        File sourceFile = new File(args[0]);
+        boolean stats = false;
+        String statsJson = null; // "" for stderr
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--stats")) {
+                stats = true;
+            } else if (args[i].equals("--stats-json")) {
+                statsJson = "";
+            } else if (args[i].startsWith("--stats-json=")) {
+                statsJson = args[i].substring("--stats-json=".length());
+            } else {
+                System.err.println("unknown option " + args[i]);
+                return;
+            }
+        }
+        File sourceFile = new File(args[args.length - 1]);
         JackCompiler compiler = new JackCompiler();
         try {
             compiler.compile(sourceFile);
+            if (stats) {
+                System.err.print(compiler.stats.toText());
+            }
+            if (statsJson != null && statsJson.isEmpty()) {
+                System.err.println(compiler.stats.toJson());
+            } else if (statsJson != null) {
+                try (Writer writer = new FileWriter(statsJson)) {
+                    writer.write(compiler.stats.toJson());
+                    writer.write('\n');
+                }
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // Return the phase timings and counters of the classes compiled so far.
+    public Stats stats() {
+        return stats;
+    }
+
     public void compile(File source) throws IOException, CompileException {
         if (source.isDirectory()) {
             for (File file : Objects.requireNonNull(source.listFiles())) {
@@ -34,8 +68,16 @@ public class JackCompiler {
 
     private void compileFile(File jackFile) throws IOException, CompileException {
         assert !jackFile.isDirectory();
+        // tokens are read on demand by the parser, so tokenizing is timed as part of compiling
+        stats.begin("compile");
         CompilationEngine compilationEngine = new CompilationEngine(jackFile);
         compilationEngine.compileClass();
+        stats.begin("write");
         compilationEngine.close();
+        stats.end();
+        stats.count("classes", 1);
+        stats.count("lines", compilationEngine.lines());
+        stats.count("tokens", compilationEngine.tokens());
+        stats.count("vm commands", compilationEngine.vmCommands());
     }
 }
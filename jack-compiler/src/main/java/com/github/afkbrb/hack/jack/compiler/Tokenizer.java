@@ -14,6 +14,8 @@ public class Tokenizer implements AutoCloseable {
 
     private int lineno = 1;
 
+    private int tokens = 0;
+
     private Keyword keyword;
     private char symbol;
     private String identifier;
@@ -129,6 +131,7 @@ public class Tokenizer implements AutoCloseable {
         } // end while
         if (!hasMoreTokens) return;
 
+        tokens++;
         token = sb.toString();
         if (tokenType == TokenType.IDENTIFIER && Keyword.keywordMap.containsKey(token)) { // may be keyword
             tokenType = TokenType.KEYWORD;
@@ -160,6 +163,11 @@ public class Tokenizer implements AutoCloseable {
         return lineno;
     }
 
+    // Return the number of tokens read so far.
+    int tokens() {
+        return tokens;
+    }
+
     public TokenType tokenType() {
         return tokenType;
     }
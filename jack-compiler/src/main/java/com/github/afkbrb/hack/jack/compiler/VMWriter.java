@@ -6,6 +6,8 @@ public class VMWriter implements AutoCloseable {
 
     private Writer writer;
 
+    private int commands = 0;
+
     public VMWriter(File vmFile) throws IOException {
         writer = new BufferedWriter(new FileWriter(vmFile));
     }
@@ -57,6 +59,12 @@ public class VMWriter implements AutoCloseable {
 
     private void emit(String command) throws IOException {
         writer.write(command + "\n");
+        commands++;
+    }
+
+    // Return the number of vm commands written so far.
+    int commands() {
+        return commands;
     }
 
     @Override
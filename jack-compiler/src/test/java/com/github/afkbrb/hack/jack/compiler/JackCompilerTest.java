@@ -0,0 +1,51 @@
+package com.github.afkbrb.hack.jack.compiler;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JackCompilerTest {
+
+    @Test
+    public void statsJsonTest() throws IOException {
+        File dir = Files.createTempDirectory("Stats").toFile();
+        dir.deleteOnExit();
+        File jackFile = new File(dir, "Main.jack");
+        jackFile.deleteOnExit();
+        new File(dir, "Main.vm").deleteOnExit();
+        try (Writer writer = new FileWriter(jackFile)) {
+            writer.write("class Main {\n    function void main() {\n        var int x;\n        let x = 1 + 2;\n"
+                    + "        do Output.printInt(x);\n        return;\n    }\n}\n");
+        }
+        File jsonFile = File.createTempFile("stats", ".json");
+        jsonFile.deleteOnExit();
+
+        JackCompiler.main(new String[]{"--stats-json=" + jsonFile.getPath(), dir.getPath()});
+        String json = new String(Files.readAllBytes(jsonFile.toPath()));
+        assertTrue(json.startsWith("{\"tool\":\"jack-compiler\",\"phases_ms\":{"));
+        assertTrue(json.contains("\"compile\":"));
+        assertTrue(json.contains("\"write\":"));
+        assertEquals("1", jsonValue(json, "classes"));
+        assertEquals("32", jsonValue(json, "tokens"));
+        assertEquals("10", jsonValue(json, "vm commands"));
+        assertTrue(Long.parseLong(jsonValue(json, "lines")) >= 8);
+        assertTrue(Double.parseDouble(jsonValue(json, "total_ms")) > 0);
+        assertTrue(Long.parseLong(jsonValue(json, "peak_heap_bytes")) > 0);
+        assertTrue(Long.parseLong(jsonValue(json, "allocated_bytes")) > 0);
+    }
+
+    private static String jsonValue(String json, String key) {
+        Matcher matcher = Pattern.compile("\"" + Pattern.quote(key) + "\":([^,}]+)").matcher(json);
+        assertTrue(key, matcher.find());
+        return matcher.group(1);
+    }
+}
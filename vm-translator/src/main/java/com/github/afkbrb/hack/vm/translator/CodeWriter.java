@@ -1,12 +1,15 @@
 package com.github.afkbrb.hack.vm.translator;
 
 import java.io.*;
+import java.util.BitSet;
 
 public class CodeWriter implements AutoCloseable {
 
+    private static final int LOCALS_LOOP = 8; // more locals to zero are zeroed by a loop
+
     private Writer writer;
 
-    private int jumpCounter = 0;
+    private int jumpCounter = 0; // per file, the labels are Foo$JMP_n
 
     private int callCounter = 0;
 
@@ -14,152 +17,459 @@ public class CodeWriter implements AutoCloseable {
 
     private String currFuncName = "_default"; // for the scope of label
 
+    private int lines = 0;
+
+    private boolean sharedCallReturn = false;
+
+    private boolean runtimeWritten = false;
+
+    private boolean cacheTop = false;
+
+    private boolean topInD = false; // the top of the stack is in D instead of RAM[SP - 1]
+
+    private boolean tailCalls = false;
+
+    private boolean compactLocals = false;
+
+    private boolean shortEncodings = false;
+
+    private StaticFrames staticFrames; // null if every frame is dynamic
+
+    private StaticFrames.Frame frame; // of the current function, null if dynamic
+
     public CodeWriter(File file) throws IOException {
-        writer = new BufferedWriter(new FileWriter(file));
+        this(new BufferedWriter(new FileWriter(file)));
+    }
+
+    // Write to writer, a buffer to be appended to another CodeWriter say.
+    CodeWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+    // If set, call and return jump to the shared routines $$CALL and $$RETURN
+    // instead of saving and restoring the frame inline, which is about 40 words
+    // less per call site and per function, for a few more cycles per call.
+    public void setSharedCallReturn(boolean sharedCallReturn) {
+        this.sharedCallReturn = sharedCallReturn;
     }
 
     // Set the name of the current parsing file, not the name of the output file.
     public void setFilename(String filename) {
         this.filename = filename;
+        jumpCounter = 0;
+    }
+
+    // If set, the top of the stack is kept in D from one command to the next, and only
+    // spilled to RAM before labels, gotos, calls and returns, where it must be in RAM
+    // since control may come from elsewhere.
+    public void setCacheTop(boolean cacheTop) {
+        this.cacheTop = cacheTop;
+    }
+
+    // If set, a call followed by return reuses the frame of the caller when the callee
+    // takes as many arguments as the caller, see writeTailCall.
+    public void setTailCalls(boolean tailCalls) {
+        this.tailCalls = tailCalls;
+    }
+
+    // If set, the locals of a function are zeroed by M=0 stores and one SP adjustment, or
+    // by a loop beyond LOCALS_LOOP of them, and the ones surely written before they are
+    // read aren't zeroed at all, see UnassignedLocals.
+    public void setCompactLocals(boolean compactLocals) {
+        this.compactLocals = compactLocals;
+    }
+
+    // If set, every (segment, index) gets its shortest encoding: push is @SP AM=M+1 A=A-1 M=D,
+    // the constants 0, 1 and -1 are computed by the ALU instead of loaded through A, and
+    // local, argument, this and that are addressed with A=M, A=M+1 and A=A+1 instead of
+    // adding the index in D and going through R13 when that is shorter.
+    public void setShortEncodings(boolean shortEncodings) {
+        this.shortEncodings = shortEncodings;
+    }
+
+    // If set, the functions with a static frame address their arguments and locals
+    // directly, and are called without building a frame, see StaticFrames.
+    void setStaticFrames(StaticFrames staticFrames) {
+        this.staticFrames = staticFrames;
     }
 
     // Bootstrap code
     public void writeInit() throws IOException {
-        emit("@256");
+        int stack = StaticFrames.BASE + (staticFrames == null ? 0 : staticFrames.size());
+        emit("@" + stack);
         emit("D=A");
         emit("@SP");
-        emit("M=D"); // SP = 256
+        emit("M=D"); // SP = 256, above the static frames if any
 
         writeCall("Sys.init", 0); // call Sys.init 0
+        writeRuntime(); // Sys.init never returns, the routines are out of the way
+    }
+
+    // The shared call and return routines, written once.
+    private void writeRuntime() throws IOException {
+        if (!sharedCallReturn || runtimeWritten) return;
+        runtimeWritten = true;
+
+        // D = return address, R13 = callee, R14 = 5 + nArgs
+        emit("\n($$CALL)");
+        emit("@SP");
+        emit("A=M");
+        emit("M=D"); // push return address
+        for (String saved : new String[]{"LCL", "ARG", "THIS", "THAT"}) {
+            emit("@" + saved);
+            emit("D=M");
+            emit("@SP");
+            emit("AM=M+1");
+            emit("M=D"); // push saved
+        }
+        emit("@SP");
+        emit("MD=M+1"); // SP++, D = SP
+        emit("@LCL");
+        emit("M=D"); // LCL = SP
+        emit("@R14");
+        emit("D=D-M");
+        emit("@ARG");
+        emit("M=D"); // ARG = SP - 5 - nArgs
+        emit("@R13");
+        emit("A=M");
+        emit("0;JMP"); // goto callee
+
+        emit("\n($$RETURN)");
+        emit("@LCL");
+        emit("D=M");
+        emit("@R13");
+        emit("M=D"); // endFrame = LCL
+        emit("@5");
+        emit("A=D-A");
+        emit("D=M");
+        emit("@R14");
+        emit("M=D"); // R14 = returnAddress, read before *ARG may overwrite it
+        pop();
+        emit("@ARG");
+        emit("A=M");
+        emit("M=D"); // *ARG = returnValue
+        emit("@ARG");
+        emit("D=M+1");
+        emit("@SP");
+        emit("M=D"); // SP = ARG + 1
+        for (String saved : new String[]{"THAT", "THIS", "ARG", "LCL"}) {
+            emit("@R13");
+            emit("AM=M-1");
+            emit("D=M");
+            emit("@" + saved);
+            emit("M=D"); // saved = *(--endFrame)
+        }
+        emit("@R14");
+        emit("A=M");
+        emit("0;JMP"); // goto returnAddress
+    }
+
+    // Write the commands of a vm file.
+    public void write(VMProgram program) throws IOException {
+        setFilename(program.filename);
+        for (int i = 0; i < program.size(); i++) {
+            Opcode opcode = program.opcode(i);
+            switch (opcode) {
+                case PUSH:
+                case POP:
+                    String own = filename;
+                    if (program.nameId(i) != -1) {
+                        filename = program.name(i); // a static of another file, see VMProgram
+                    }
+                    if (opcode == Opcode.PUSH) {
+                        writePush(program.segment(i), program.operand(i));
+                    } else {
+                        writePop(program.segment(i), program.operand(i));
+                    }
+                    filename = own;
+                    break;
+                case LABEL:
+                    writeLabel(program.name(i));
+                    break;
+                case GOTO:
+                    writeGoto(program.name(i));
+                    break;
+                case IF_GOTO:
+                    writeIf(program.name(i));
+                    break;
+                case FUNCTION:
+                    writeFunction(program.name(i), program.operand(i),
+                            compactLocals ? UnassignedLocals.of(program, i) : null);
+                    break;
+                case CALL:
+                    if (tailCalls && i + 1 < program.size() && program.opcode(i + 1) == Opcode.RETURN) {
+                        writeTailCall(program.name(i), program.operand(i));
+                        i++; // the return
+                    } else {
+                        writeCall(program.name(i), program.operand(i));
+                    }
+                    break;
+                case RETURN:
+                    writeReturn();
+                    break;
+                case IF_EQ:
+                case IF_NE:
+                case IF_GT:
+                case IF_LE:
+                case IF_LT:
+                case IF_GE:
+                    writeCompareIf(opcode, program.name(i));
+                    break;
+                case MOVE:
+                    writeMove(program.segment(i), program.operand(i), program.targetSegment(i), program.targetOperand(i));
+                    break;
+                default:
+                    writeArithmetic(opcode);
+            }
+        }
+        spill(); // files are independent of each other
+    }
+
+    // Append the asm written by another CodeWriter.
+    void append(String asm, int lines) throws IOException {
+        writer.write(asm);
+        this.lines += lines;
     }
 
     // add, sub, neg, eq, gt, lt, and, or, not
-    public void writeArithmetic(String action) throws IOException {
-        switch (action) {
-            case "add":
+    public void writeArithmetic(Opcode opcode) throws IOException {
+        switch (opcode) {
+            case ADD:
                 binaryArithmetic("+");
                 break;
-            case "sub":
+            case SUB:
                 binaryArithmetic("-");
                 break;
-            case "and":
+            case AND:
                 binaryArithmetic("&");
                 break;
-            case "or":
+            case OR:
                 binaryArithmetic("|");
                 break;
-            case "neg":
+            case NEG:
                 unaryArithmetic("-");
                 break;
-            case "not":
+            case NOT:
                 unaryArithmetic("!");
                 break;
-            case "eq":
+            case EQ:
                 comparision("JEQ");
                 break;
-            case "gt":
+            case GT:
                 comparision("JGT");
                 break;
-            case "lt":
+            case LT:
                 comparision("JLT");
                 break;
             default:
-                throw new IllegalStateException(String.format("bug, action: %s", action));
-        }
-    }
-
-    // push, pop
-    public void writeMemory(String action, String segment, int index) throws IOException {
-        switch (action) {
-            case "push":
-                switch (segment) {
-                    case "local":
-                        pushSegment("LCL", index);
-                        break;
-                    case "argument":
-                        pushSegment("ARG", index);
-                        break;
-                    case "this":
-                        pushSegment("THIS", index);
-                        break;
-                    case "that":
-                        pushSegment("THAT", index);
-                        break;
-                    case "pointer":
-                        pushPointer(index);
-                        break;
-                    case "constant":
-                        pushConstant(index);
-                        break;
-                    case "static":
-                        pushStatic(index);
-                        break;
-                    case "temp":
-                        pushTemp(index);
-                        break;
-                    default:
-                        throw new IllegalStateException(String.format("bug, action: %s", action));
-                }
-                break;
-            case "pop":
-                switch (segment) {
-                    case "local":
-                        popSegment("LCL", index);
-                        break;
-                    case "argument":
-                        popSegment("ARG", index);
-                        break;
-                    case "this":
-                        popSegment("THIS", index);
-                        break;
-                    case "that":
-                        popSegment("THAT", index);
-                        break;
-                    case "pointer":
-                        popPointer(index);
-                        break;
-                    case "static":
-                        popStatic(index);
-                        break;
-                    case "temp":
-                        popTemp(index);
-                        break;
-                    default:
-                        throw new IllegalStateException(String.format("bug, action: %s", action));
-                }
-                break;
-            default:
-                throw new IllegalStateException(String.format("bug, action: %s", action));
+                throw new IllegalStateException(String.format("bug, opcode: %s", opcode));
+        }
+    }
+
+    public void writePush(Segment segment, int index) throws IOException {
+        spill();
+        if (shortEncodings && !cacheTop && segment == Segment.CONSTANT && aluConstant(index)) {
+            emit("@SP");
+            emit("AM=M+1");
+            emit("A=A-1");
+            emit("M=" + index); // push 0, 1 or -1 without D
+            return;
+        }
+        load(segment, index);
+        pushValue();
+    }
+
+    public void writePop(Segment segment, int index) throws IOException {
+        if (segment == Segment.CONSTANT) {
+            throw new IllegalStateException(String.format("bug, pop %s", segment.text));
+        }
+        boolean chain = cacheTop ? index < 8 : shortEncodings && index <= 6; // shorter than through R13
+        if (segment.base != null && staticAddress(segment, index) == -1 && !chain) {
+            popSegment(segment.base, index);
+            return;
+        }
+        popValue();
+        store(segment, index);
+    }
+
+    // push source i, pop target j, without going through the stack
+    public void writeMove(Segment source, int i, Segment target, int j) throws IOException {
+        spill();
+        if (target.base != null && j >= 8 && staticAddress(target, j) == -1) {
+            emit("@" + target.base);
+            emit("D=M");
+            emit("@" + j);
+            emit("D=D+A");
+            setReg(); // addr = segmentPtr + j
+            load(source, i);
+            emit("@R13");
+            emit("A=M");
+            emit("M=D"); // *addr = source i
+        } else if (shortEncodings && source == Segment.CONSTANT && aluConstant(i)) {
+            store(target, j, String.valueOf(i)); // target j = 0, 1 or -1 without D
+        } else {
+            load(source, i);
+            store(target, j);
         }
     }
 
     public void writeLabel(String label) throws IOException {
+        spill();
         emit(String.format("(%s$%s)", currFuncName, label)); // (Foo.func$label)
     }
 
     public void writeGoto(String label) throws IOException {
+        spill();
         emit(String.format("@%s$%s", currFuncName, label));
         emit("0;JMP"); // goto Foo.func$label
     }
 
     public void writeIf(String label) throws IOException {
-        pop();
+        popValue();
         emit(String.format("@%s$%s", currFuncName, label));
         emit("D;JNE"); // if (pop() != 0) goto Foo.func$label
     }
 
+    // Compare and branch without making the boolean: if (x cmp y) goto Foo.func$label
+    public void writeCompareIf(Opcode opcode, String label) throws IOException {
+        popValue(); // D = y
+        emit("@SP");
+        emit("AM=M-1");
+        emit("D=M-D"); // D = x - y
+        emit(String.format("@%s$%s", currFuncName, label));
+        switch (opcode) {
+            case IF_EQ:
+                emit("D;JEQ");
+                break;
+            case IF_NE:
+                emit("D;JNE");
+                break;
+            case IF_GT:
+                emit("D;JGT");
+                break;
+            case IF_LE:
+                emit("D;JLE");
+                break;
+            case IF_LT:
+                emit("D;JLT");
+                break;
+            case IF_GE:
+                emit("D;JGE");
+                break;
+            default:
+                throw new IllegalStateException(String.format("bug, opcode: %s", opcode));
+        }
+    }
+
     public void writeFunction(String functionName, int nVars) throws IOException {
+        writeFunction(functionName, nVars, null);
+    }
+
+    // Only the locals in zeroed are zeroed, all of them if it's null.
+    private void writeFunction(String functionName, int nVars, BitSet zeroed) throws IOException {
         this.currFuncName = functionName;
         callCounter = 0;
+        spill();
         emit(String.format("\n(%s) // function %s %d", functionName, functionName, nVars)); // (Foo.func)
+        frame = staticFrames == null ? null : staticFrames.frame(functionName);
+        if (frame != null) {
+            emit("@SP");
+            emit("D=M");
+            emit("@" + frame.stackPointer);
+            emit("M=D"); // save SP, the arguments are already popped by the caller
+            if (frame.savedThis != -1) {
+                emit("@THIS");
+                emit("D=M");
+                emit("@" + frame.savedThis);
+                emit("M=D");
+            }
+            if (frame.savedThat != -1) {
+                emit("@THAT");
+                emit("D=M");
+                emit("@" + frame.savedThat);
+                emit("M=D");
+            }
+            for (int i = 0; i < nVars; i++) {
+                if (zeroed == null || zeroed.get(i)) {
+                    emit("@" + (frame.locals + i));
+                    emit("M=0");
+                }
+            }
+            return;
+        }
+        if (zeroed != null) {
+            writeLocals(functionName, nVars, zeroed.get(0, nVars));
+            return;
+        }
         for (int i = 0; i < nVars; i++) { // repeat n push 0
+            spill();
             emit("D=0");
-            push();
+            pushValue();
+        }
+    }
+
+    // Push nVars locals, only the ones in zeroed are zeroed.
+    private void writeLocals(String functionName, int nVars, BitSet zeroed) throws IOException {
+        if (zeroed.cardinality() > LOCALS_LOOP) {
+            String loop = functionName + "$$LOCALS";
+            emit("@" + nVars);
+            emit("D=A");
+            emit(String.format("(%s)", loop));
+            emit("@SP");
+            emit("AM=M+1");
+            emit("A=A-1");
+            emit("M=0"); // push 0
+            emit("D=D-1");
+            emit("@" + loop);
+            emit("D;JGT");
+            return;
+        }
+        if (!zeroed.isEmpty()) {
+            emit("@SP");
+            emit("A=M");
+            int at = 0;
+            for (int i = zeroed.nextSetBit(0); i >= 0; i = zeroed.nextSetBit(i + 1)) {
+                for (; at < i; at++) {
+                    emit("A=A+1");
+                }
+                emit("M=0"); // local i = 0
+            }
+        }
+        if (nVars == 1) {
+            emit("@SP");
+            emit("M=M+1");
+        } else if (nVars > 1) {
+            emit("@" + nVars);
+            emit("D=A");
+            emit("@SP");
+            emit("M=D+M"); // SP += nVars
         }
     }
 
     public void writeCall(String functionName, int nArgs) throws IOException {
         String retAddrLabel = String.format("%s$ret.%d", currFuncName, callCounter++);
+        StaticFrames.Frame callee = staticFrames == null ? null : staticFrames.frame(functionName);
+        if (callee != null) {
+            writeStaticCall(functionName, nArgs, callee, retAddrLabel);
+            return;
+        }
+        spill();
+        if (sharedCallReturn) {
+            emit(String.format("@%s // call %s %d", functionName, functionName, nArgs));
+            emit("D=A");
+            emit("@R13");
+            emit("M=D"); // R13 = callee
+            emit("@" + (5 + nArgs));
+            emit("D=A");
+            emit("@R14");
+            emit("M=D"); // R14 = 5 + nArgs
+            emit("@" + retAddrLabel);
+            emit("D=A");
+            emit("@$$CALL");
+            emit("0;JMP");
+            emit(String.format("(%s)", retAddrLabel));
+            return;
+        }
         emit(String.format("@%s // call %s %d begin", retAddrLabel, functionName, nArgs)); // 指令流太长了，加点注释
         emit("D=A");
         push(); // push retAddrLabel
@@ -178,10 +488,8 @@ public class CodeWriter implements AutoCloseable {
 
         emit("@SP");
         emit("D=M");
-        push();
-        pushConstant(5 + nArgs);
-        writeArithmetic("sub");
-        pop();
+        emit("@" + (5 + nArgs));
+        emit("D=D-A");
         emit("@ARG");
         emit("M=D"); // ARG = SP - 5 - nArgs
 
@@ -196,7 +504,99 @@ public class CodeWriter implements AutoCloseable {
         emit(String.format("(%s) // call %s %d end", retAddrLabel, functionName, nArgs)); // (retAddrLabel)
     }
 
+    // Pop the arguments into the frame of the callee, save the return address and jump.
+    private void writeStaticCall(String functionName, int nArgs, StaticFrames.Frame callee, String retAddrLabel) throws IOException {
+        if (nArgs == 0) {
+            spill();
+        }
+        for (int i = nArgs - 1; i >= 0; i--) {
+            popValue();
+            emit("@" + (callee.arguments + i));
+            emit("M=D"); // argument i of the callee
+        }
+        emit(String.format("@%s // call %s %d", retAddrLabel, functionName, nArgs));
+        emit("D=A");
+        emit("@" + callee.returnAddress);
+        emit("M=D");
+        emit("@" + functionName);
+        emit("0;JMP");
+        emit(String.format("(%s)", retAddrLabel));
+    }
+
+    // call functionName nArgs, then return. If the caller got nArgs arguments too, that is
+    // if LCL - ARG == 5 + nArgs, the arguments are copied over the ones of the caller and
+    // the callee is entered with the frame of the caller, whose saved return address, LCL,
+    // ARG, THIS and THAT stay in place, so the callee returns straight to the caller of the
+    // caller and the stack doesn't grow. Otherwise it's an ordinary call and return.
+    public void writeTailCall(String functionName, int nArgs) throws IOException {
+        if (frame != null || (staticFrames != null && staticFrames.frame(functionName) != null)) {
+            writeCall(functionName, nArgs); // no dynamic frame to reuse, or none needed
+            writeReturn();
+            return;
+        }
+        String callLabel = String.format("%s$tail.%d", currFuncName, callCounter);
+        spill();
+        emit(String.format("@LCL // tail call %s %d", functionName, nArgs));
+        emit("D=M");
+        emit("@ARG");
+        emit("D=D-M");
+        emit("@" + (5 + nArgs));
+        emit("D=D-A");
+        emit("@" + callLabel);
+        emit("D;JNE"); // the caller got another number of arguments
+        for (int i = nArgs - 1; i >= 0; i--) {
+            pop();
+            emit("@ARG");
+            emit("A=M");
+            for (int j = 0; j < i; j++) {
+                emit("A=A+1");
+            }
+            emit("M=D"); // argument i of the caller = argument i of the callee
+        }
+        emit("@LCL");
+        emit("D=M");
+        emit("@SP");
+        emit("M=D"); // SP = LCL
+        emit("@" + functionName);
+        emit("0;JMP");
+        emit(String.format("(%s)", callLabel));
+        writeCall(functionName, nArgs);
+        writeReturn();
+    }
+
     public void writeReturn() throws IOException {
+        if (frame != null) {
+            popValue(); // D = returnValue
+            emit(String.format("@%d // return from %s", frame.stackPointer, currFuncName));
+            emit("A=M");
+            emit("M=D"); // *savedSP = returnValue
+            if (frame.savedThis != -1) {
+                emit("@" + frame.savedThis);
+                emit("D=M");
+                emit("@THIS");
+                emit("M=D");
+            }
+            if (frame.savedThat != -1) {
+                emit("@" + frame.savedThat);
+                emit("D=M");
+                emit("@THAT");
+                emit("M=D");
+            }
+            emit("@" + frame.stackPointer);
+            emit("D=M+1");
+            emit("@SP");
+            emit("M=D"); // SP = savedSP + 1
+            emit("@" + frame.returnAddress);
+            emit("A=M");
+            emit("0;JMP");
+            return;
+        }
+        spill();
+        if (sharedCallReturn) {
+            emit(String.format("@$$RETURN // return from %s", currFuncName));
+            emit("0;JMP");
+            return;
+        }
         emit(String.format("@LCL // return from %s begin", currFuncName));
         emit("D=M");
         emit("@R13");
@@ -258,79 +658,143 @@ public class CodeWriter implements AutoCloseable {
         emit(String.format("0;JMP // return from %s end", currFuncName));
     }
 
-    // for local, argument, this, that
-    private void pushSegment(String segment, int i) throws IOException {
-        emit("@" + segment);
-        emit("D=M"); // D = segmentPtr
-        emit("@" + i);
-        emit("A=D+A"); // A = segmentPtr + i
-        emit("D=M"); // D = *(segmentPtr + i)
-        push();
+    // The address of local i or argument i in a static frame, -1 if it's relative to LCL or ARG.
+    private int staticAddress(Segment segment, int i) {
+        if (frame == null) return -1;
+        if (segment == Segment.LOCAL) return frame.locals + i;
+        if (segment == Segment.ARGUMENT) return frame.arguments + i;
+        return -1;
     }
 
-    private void popSegment(String segment, int i) throws IOException {
-        emit("@" + segment);
-        emit("D=M");
-        emit("@" + i);
-        emit("D=D+A");
-        setReg(); // addr = segmentPtr + i
-        pop();
-        emit("@R13");
-        emit("A=M");
-        emit("M=D"); // *addr = *SP
-    }
-
-    private void pushPointer(int i) throws IOException {
-        if (i == 0) {
-            emit("@THIS");
-        } else {
-            emit("@THAT");
+    // D = segment[i], only A and D are used
+    private void load(Segment segment, int i) throws IOException {
+        int address = staticAddress(segment, i);
+        if (address != -1) {
+            emit("@" + address);
+            emit("D=M");
+            return;
         }
-        emit("D=M");
-        push();
-    }
-
-    private void popPointer(int i) throws IOException {
-        pop();
-        if (i == 0) {
-            emit("@THIS");
-        } else {
-            emit("@THAT");
+        switch (segment) {
+            case POINTER:
+                emit(i == 0 ? "@THIS" : "@THAT");
+                emit("D=M");
+                break;
+            case CONSTANT:
+                if (shortEncodings && aluConstant(i)) {
+                    emit("D=" + i);
+                } else if (i >= 0) {
+                    emit("@" + i);
+                    emit("D=A");
+                } else if (i == -32768) { // folded constants may be negative
+                    emit("@32767");
+                    emit("D=!A");
+                } else {
+                    emit("@" + -i);
+                    emit("D=-A");
+                }
+                break;
+            case STATIC:
+                emit("@" + filename + "." + i); // @Foo.i
+                emit("D=M"); // D = Foo.i
+                break;
+            case TEMP:
+                emit("@" + (5 + i));
+                emit("D=M"); // D = *(5 + i)
+                break;
+            default: // local, argument, this, that
+                if (shortEncodings && i <= 2) {
+                    emit("@" + segment.base);
+                    emit(i == 0 ? "A=M" : "A=M+1");
+                    if (i == 2) {
+                        emit("A=A+1");
+                    }
+                    emit("D=M"); // D = *(segmentPtr + i)
+                    break;
+                }
+                emit("@" + segment.base);
+                emit("D=M"); // D = segmentPtr
+                emit("@" + i);
+                emit("A=D+A"); // A = segmentPtr + i
+                emit("D=M"); // D = *(segmentPtr + i)
         }
-        emit("M=D");
     }
 
-    private void pushStatic(int i) throws IOException {
-        emit("@" + filename + "." + i); // @Foo.i
-        emit("D=M"); // D = Foo.i
-        push();
+    // segment[i] = D, i < 8 for local, argument, this and that
+    private void store(Segment segment, int i) throws IOException {
+        store(segment, i, "D");
     }
 
-    private void popStatic(int i) throws IOException {
-        pop();
-        emit("@" + filename + "." + i); // @Foo.i
-        emit("M=D"); // Foo.i = D
-    }
-
-    private void pushConstant(int constant) throws IOException {
-        emit("@" + constant);
-        emit("D=A");
-        push();
+    // segment[i] = comp, D or a constant of the ALU
+    private void store(Segment segment, int i, String comp) throws IOException {
+        int address = staticAddress(segment, i);
+        if (address != -1) {
+            emit("@" + address);
+            emit("M=" + comp);
+            return;
+        }
+        switch (segment) {
+            case POINTER:
+                emit(i == 0 ? "@THIS" : "@THAT");
+                break;
+            case STATIC:
+                emit("@" + filename + "." + i); // @Foo.i
+                break;
+            case TEMP:
+                emit("@" + (5 + i));
+                break;
+            default: // cheaper than computing the address in R13
+                emit("@" + segment.base);
+                int j = 0;
+                if (shortEncodings && i > 0) {
+                    emit("A=M+1");
+                    j++;
+                } else {
+                    emit("A=M");
+                }
+                for (; j < i; j++) {
+                    emit("A=A+1");
+                }
+        }
+        emit("M=" + comp);
     }
 
-    private void pushTemp(int i) throws IOException {
-        emit("@" + (5 + i));
-        emit("D=M"); // D = *(5 + i)
-        push();
+    // The constants the ALU computes without A.
+    private static boolean aluConstant(int i) {
+        return i == 0 || i == 1 || i == -1;
     }
 
-    private void popTemp(int i) throws IOException {
-        pop();
-        emit("@" + (5 + i));
-        emit("M=D"); // *(5 + i) = D
+    // pop to local, argument, this or that through the address in R13
+    private void popSegment(String segment, int i) throws IOException {
+        if (topInD) {
+            emit("@R14");
+            emit("M=D"); // the address is computed in D, save the top first
+        }
+        emit("@" + segment);
+        emit("D=M");
+        emit("@" + i);
+        emit("D=D+A");
+        setReg(); // addr = segmentPtr + i
+        if (topInD) {
+            emit("@R14");
+            emit("D=M");
+            topInD = false;
+        } else {
+            pop();
+        }
+        emit("@R13");
+        emit("A=M");
+        emit("M=D"); // *addr = *SP
     }
 
     private void binaryArithmetic(String op) throws IOException {
+        if (cacheTop) {
+            popValue(); // D = y
+            emit("@SP");
+            emit("AM=M-1"); // M = x
+            emit(op.equals("-") ? "D=M-D" : "D=D" + op + "M"); // D = x op y
+            pushValue();
+            return;
+        }
         pop();
         setReg(); // R = D
         pop();
@@ -340,27 +804,36 @@ public class CodeWriter implements AutoCloseable {
     }
 
     private void unaryArithmetic(String op) throws IOException {
-        pop();
+        popValue();
         emit("D=" + op + "D"); // D = ?D
-        push();
+        pushValue();
     }
 
     private void comparision(String cmp) throws IOException {
         int counter = jumpCounter++;
-        pop();
-        setReg(); // R = D
-        pop();
-        emit("@R13");
-        emit("D=D-M"); // D = D - R
-        emit("@JMP_" + counter);
+        if (cacheTop) {
+            popValue(); // D = y
+            emit("@SP");
+            emit("AM=M-1");
+            emit("D=M-D"); // D = x - y
+        } else {
+            pop();
+            setReg(); // R = D
+            pop();
+            emit("@R13");
+            emit("D=D-M"); // D = D - R
+        }
+        String label = filename + "$JMP_" + counter;
+        String endLabel = filename + "$JMP_END_" + counter;
+        emit("@" + label);
         emit("D;" + cmp); // if (D ? M) jump to set -1
         emit("D=0"); // set 0
-        emit("@JMP_END_" + counter);
+        emit("@" + endLabel);
         emit("0;JMP");
-        emit("(JMP_" + counter + ")");
+        emit("(" + label + ")");
         emit("D=-1"); // set -1
-        emit("(JMP_END_" + counter + ")");
-        push();
+        emit("(" + endLabel + ")");
+        pushValue();
     }
 
     // R = D
@@ -377,6 +850,13 @@ public class CodeWriter implements AutoCloseable {
     }
 
     private void push() throws IOException {
+        if (shortEncodings) {
+            emit("@SP");
+            emit("AM=M+1");
+            emit("A=A-1");
+            emit("M=D"); // *(SP++) = D
+            return;
+        }
         emit("@SP");
         emit("A=M");
         emit("M=D"); // *SP == D
@@ -390,13 +870,46 @@ public class CodeWriter implements AutoCloseable {
         emit("D=M"); // D = *SP
     }
 
+    // Push D, it stays in D if the top is cached.
+    private void pushValue() throws IOException {
+        if (cacheTop) {
+            topInD = true;
+        } else {
+            push();
+        }
+    }
+
+    // Pop to D, a cached top is already there.
+    private void popValue() throws IOException {
+        if (topInD) {
+            topInD = false;
+        } else {
+            pop();
+        }
+    }
+
+    // Write the cached top to RAM, before D is overwritten or control may come from elsewhere.
+    private void spill() throws IOException {
+        if (topInD) {
+            push();
+            topInD = false;
+        }
+    }
+
 
     private void emit(String command) throws IOException {
         writer.write(command + "\n");
+        lines++;
+    }
+
+    // Return the number of asm lines written so far.
+    int lines() {
+        return lines;
     }
 
     @Override
     public void close() throws IOException {
+        writeRuntime(); // no bootstrap for a single file
         writer.close();
     }
 }
@@ -0,0 +1,125 @@
+package com.github.afkbrb.hack.vm.translator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Drop the functions that can't be called from Sys.init.
+ *
+ * A function is its function command and everything up to the next one in the file.
+ * Starting from Sys.init, which the bootstrap calls, every call in a reachable
+ * function makes the callee reachable. The vm language has no function pointers,
+ * so this is the whole call graph. The commands before the first function of a file
+ * are kept. Without Sys.init, a single file say, nothing is dropped.
+ */
+final class DeadFunctionEliminator {
+
+    private static final String ENTRY = "Sys.init";
+
+    private final List<String> dropped = new ArrayList<>();
+
+    private final List<Integer> droppedCommands = new ArrayList<>();
+
+    private int functionsBefore;
+
+    private int functionsAfter;
+
+    private int commandsBefore;
+
+    private int commandsAfter;
+
+    /**
+     * Return the programs with the reachable functions only.
+     */
+    List<VMProgram> eliminate(List<VMProgram> programs) {
+        dropped.clear();
+        droppedCommands.clear();
+        // name => {program, start, end}
+        Map<String, int[]> functions = new HashMap<>();
+        for (int p = 0; p < programs.size(); p++) {
+            VMProgram program = programs.get(p);
+            int start = -1;
+            for (int i = 0; i <= program.size(); i++) {
+                if (i == program.size() || program.opcode(i) == Opcode.FUNCTION) {
+                    if (start != -1) {
+                        functions.put(program.name(start), new int[]{p, start, i});
+                    }
+                    start = i;
+                }
+            }
+        }
+
+        Map<String, Boolean> reachable = new HashMap<>();
+        Deque<String> work = new ArrayDeque<>();
+        if (functions.containsKey(ENTRY)) {
+            reachable.put(ENTRY, true);
+            work.push(ENTRY);
+        } else {
+            for (String function : functions.keySet()) {
+                reachable.put(function, true);
+            }
+        }
+        while (!work.isEmpty()) {
+            int[] function = functions.get(work.pop());
+            VMProgram program = programs.get(function[0]);
+            for (int i = function[1]; i < function[2]; i++) {
+                if (program.opcode(i) == Opcode.CALL) {
+                    String callee = program.name(i);
+                    if (functions.containsKey(callee) && reachable.putIfAbsent(callee, true) == null) {
+                        work.push(callee);
+                    }
+                }
+            }
+        }
+
+        List<VMProgram> out = new ArrayList<>(programs.size());
+        functionsBefore = functions.size();
+        functionsAfter = reachable.size();
+        for (VMProgram program : programs) {
+            VMProgram kept = new VMProgram(program.filename);
+            boolean keep = true; // before the first function
+            int start = 0;
+            for (int i = 0; i <= program.size(); i++) {
+                if (i < program.size() && program.opcode(i) != Opcode.FUNCTION) {
+                    if (keep) {
+                        kept.add(program, i);
+                    }
+                    continue;
+                }
+                if (!keep) {
+                    dropped.add(program.name(start));
+                    droppedCommands.add(i - start);
+                }
+                if (i < program.size()) {
+                    start = i;
+                    keep = reachable.containsKey(program.name(i));
+                    if (keep) {
+                        kept.add(program, i);
+                    }
+                }
+            }
+            commandsBefore += program.size();
+            commandsAfter += kept.size();
+            out.add(kept);
+        }
+        return out;
+    }
+
+    /**
+     * Functions and commands before and after, and the commands of every dropped function.
+     */
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("dead code: %d -> %d functions, %d -> %d commands (-%.1f%%)%n",
+                functionsBefore, functionsAfter, commandsBefore, commandsAfter,
+                commandsBefore == 0 ? 0.0 : 100.0 * (commandsBefore - commandsAfter) / commandsBefore));
+        for (int i = 0; i < dropped.size(); i++) {
+            sb.append(String.format("  %-40s %d%n", dropped.get(i), droppedCommands.get(i)));
+        }
+        return sb.toString();
+    }
+}
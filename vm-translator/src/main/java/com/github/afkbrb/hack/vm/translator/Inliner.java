@@ -0,0 +1,295 @@
+package com.github.afkbrb.hack.vm.translator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Substitute the bodies of small leaf functions for the calls to them.
+ *
+ * A function is inlined if its body has at most threshold commands, no call, and only
+ * forward jumps, so no loop, and if it keeps the stack balanced: every return has just
+ * the return value above what the function got, as the Jack compiler does. At a call
+ * site the arguments are popped into new locals of the caller, the locals of the callee
+ * get new locals of the caller zeroed, every return jumps to the end of the body, and
+ * THIS and THAT are saved and restored around it if the callee sets them, as its return
+ * would. The sites share the new locals, since a leaf body never contains another one.
+ * The labels of the callee get its name and a counter, and its static variables keep
+ * their file, see VMProgram.addStatic.
+ */
+final class Inliner {
+
+    private final int threshold;
+
+    private final Map<String, Integer> sites = new TreeMap<>(); // callee => sites inlined
+
+    private int commandsBefore;
+
+    private int commandsAfter;
+
+    Inliner(int threshold) {
+        this.threshold = threshold;
+    }
+
+    // A function that can be inlined.
+    private static final class Leaf {
+
+        final VMProgram program;
+
+        final int start; // the function command
+
+        final int end;
+
+        final int nArgs; // the most arguments read
+
+        final int nVars;
+
+        final boolean setsThis;
+
+        final boolean setsThat;
+
+        Leaf(VMProgram program, int start, int end, int nArgs, int nVars, boolean setsThis, boolean setsThat) {
+            this.program = program;
+            this.start = start;
+            this.end = end;
+            this.nArgs = nArgs;
+            this.nVars = nVars;
+            this.setsThis = setsThis;
+            this.setsThat = setsThat;
+        }
+    }
+
+    /**
+     * Return the programs with the calls to leaf functions inlined.
+     */
+    List<VMProgram> inline(List<VMProgram> programs) {
+        Map<String, Leaf> leaves = new HashMap<>();
+        for (VMProgram program : programs) {
+            int start = -1;
+            for (int i = 0; i <= program.size(); i++) {
+                if (i == program.size() || program.opcode(i) == Opcode.FUNCTION) {
+                    if (start != -1) {
+                        Leaf leaf = leaf(program, start, i);
+                        if (leaf != null) {
+                            leaves.put(program.name(start), leaf);
+                        }
+                    }
+                    start = i;
+                }
+            }
+        }
+
+        List<VMProgram> out = new ArrayList<>(programs.size());
+        for (VMProgram program : programs) {
+            VMProgram inlined = new VMProgram(program.filename);
+            int start = 0;
+            for (int i = 0; i <= program.size(); i++) {
+                if (i > start && (i == program.size() || program.opcode(i) == Opcode.FUNCTION)) {
+                    if (program.opcode(start) == Opcode.FUNCTION) {
+                        inlineCalls(program, start, i, leaves, inlined);
+                    } else { // before the first function
+                        for (int j = start; j < i; j++) {
+                            inlined.add(program, j);
+                        }
+                    }
+                    start = i;
+                }
+            }
+            commandsBefore += program.size();
+            commandsAfter += inlined.size();
+            out.add(inlined);
+        }
+        return out;
+    }
+
+    // Return the function from start to end as a leaf, null if it can't be inlined.
+    private Leaf leaf(VMProgram program, int start, int end) {
+        if (end - start - 1 > threshold) return null;
+        Map<Integer, Integer> labels = new HashMap<>(); // label => index
+        for (int i = start + 1; i < end; i++) {
+            if (program.opcode(i) == Opcode.LABEL) {
+                labels.put(program.nameId(i), i);
+            }
+        }
+        int nArgs = 0;
+        int nVars = program.operand(start);
+        boolean setsThis = false;
+        boolean setsThat = false;
+        Map<Integer, Integer> depths = new HashMap<>(); // label => stack depth of the jumps to it
+        int depth = 0; // above the stack on entry
+        boolean reachable = true;
+        for (int i = start + 1; i < end; i++) {
+            Opcode opcode = program.opcode(i);
+            switch (opcode) {
+                case CALL:
+                    return null;
+                case PUSH:
+                case POP:
+                    Segment segment = program.segment(i);
+                    int index = program.operand(i);
+                    if (segment == Segment.ARGUMENT) {
+                        nArgs = Math.max(nArgs, index + 1);
+                    } else if (segment == Segment.LOCAL) {
+                        nVars = Math.max(nVars, index + 1);
+                    } else if (segment == Segment.POINTER && opcode == Opcode.POP) {
+                        setsThis |= index == 0;
+                        setsThat |= index == 1;
+                    }
+                    depth += opcode == Opcode.PUSH ? 1 : -1;
+                    break;
+                case LABEL:
+                    Integer jumped = depths.get(program.nameId(i));
+                    if (reachable && jumped != null && jumped != depth) return null;
+                    if (!reachable && jumped != null) {
+                        depth = jumped;
+                        reachable = true;
+                    }
+                    break;
+                case GOTO:
+                case IF_GOTO:
+                    Integer target = labels.get(program.nameId(i));
+                    if (target == null || target < i) return null; // a loop
+                    if (!reachable) break;
+                    if (opcode == Opcode.IF_GOTO) depth--;
+                    Integer other = depths.putIfAbsent(program.nameId(i), depth);
+                    if (other != null && other != depth) return null;
+                    reachable = opcode == Opcode.IF_GOTO;
+                    break;
+                case RETURN:
+                    if (reachable && depth != 1) return null;
+                    reachable = false;
+                    break;
+                case NEG:
+                case NOT:
+                    break;
+                default: // binary
+                    depth--;
+            }
+            if (reachable && depth < 0) return null; // pops what it didn't push
+        }
+        if (reachable) return null; // falls off the end
+        return new Leaf(program, start, end, nArgs, nVars, setsThis, setsThat);
+    }
+
+    // Append the function from start to end with its calls to leaves inlined.
+    private void inlineCalls(VMProgram program, int start, int end, Map<String, Leaf> leaves, VMProgram out) {
+        int nVars = program.operand(start);
+        VMProgram body = new VMProgram(program.filename);
+        int extra = 0;
+        int counter = 0;
+        for (int i = start + 1; i < end; i++) {
+            Opcode opcode = program.opcode(i);
+            if ((opcode == Opcode.PUSH || opcode == Opcode.POP) && program.segment(i) == Segment.LOCAL) {
+                nVars = Math.max(nVars, program.operand(i) + 1);
+            }
+        }
+        for (int i = start + 1; i < end; i++) {
+            Leaf leaf = program.opcode(i) == Opcode.CALL ? leaves.get(program.name(i)) : null;
+            if (leaf == null) {
+                body.add(program, i);
+                continue;
+            }
+            extra = Math.max(extra, inlineCall(leaf, program.operand(i), nVars, counter++, body));
+            sites.merge(program.name(i), 1, Integer::sum);
+        }
+        out.add(Opcode.FUNCTION, program.name(start), nVars + extra);
+        for (int i = 0; i < body.size(); i++) {
+            out.add(body, i);
+        }
+    }
+
+    // Append the body of leaf with its slots from local base on, and return the slots taken.
+    private int inlineCall(Leaf leaf, int nArgs, int base, int counter, VMProgram out) {
+        VMProgram callee = leaf.program;
+        String callerFile = out.filename;
+        String name = callee.name(leaf.start);
+        int locals = base + Math.max(nArgs, leaf.nArgs); // the locals of the callee
+        int saved = locals + leaf.nVars; // THIS, then THAT
+        for (int i = nArgs - 1; i >= 0; i--) {
+            out.add(Opcode.POP, Segment.LOCAL, base + i);
+        }
+        if (leaf.setsThis) {
+            out.add(Opcode.PUSH, Segment.POINTER, 0);
+            out.add(Opcode.POP, Segment.LOCAL, saved);
+        }
+        if (leaf.setsThat) {
+            out.add(Opcode.PUSH, Segment.POINTER, 1);
+            out.add(Opcode.POP, Segment.LOCAL, saved + (leaf.setsThis ? 1 : 0));
+        }
+        for (int j = 0; j < leaf.nVars; j++) {
+            out.add(Opcode.PUSH, Segment.CONSTANT, 0);
+            out.add(Opcode.POP, Segment.LOCAL, locals + j);
+        }
+        // VM labels can't start with $, so $$END never meets a renamed label of the callee.
+        String end = String.format("%s$$END.%d", name, counter);
+        boolean jumpsToEnd = false;
+        for (int i = leaf.start + 1; i < leaf.end; i++) {
+            Opcode opcode = callee.opcode(i);
+            switch (opcode) {
+                case PUSH:
+                case POP:
+                    Segment segment = callee.segment(i);
+                    int index = callee.operand(i);
+                    if (segment == Segment.ARGUMENT) {
+                        out.add(opcode, Segment.LOCAL, base + index);
+                    } else if (segment == Segment.LOCAL) {
+                        out.add(opcode, Segment.LOCAL, locals + index);
+                    } else if (segment == Segment.STATIC && !callee.filename.equals(callerFile)) {
+                        out.addStatic(opcode, callee.filename, index);
+                    } else {
+                        out.add(callee, i);
+                    }
+                    break;
+                case LABEL:
+                case GOTO:
+                case IF_GOTO:
+                    out.add(opcode, String.format("%s$%s.%d", name, callee.name(i), counter), 0);
+                    break;
+                case RETURN:
+                    if (i < leaf.end - 1) {
+                        out.add(Opcode.GOTO, end, 0);
+                        jumpsToEnd = true;
+                    }
+                    break;
+                default:
+                    out.add(callee, i);
+            }
+        }
+        if (jumpsToEnd) {
+            out.add(Opcode.LABEL, end, 0);
+        }
+        if (leaf.setsThis) { // the return value stays on top
+            out.add(Opcode.PUSH, Segment.LOCAL, saved);
+            out.add(Opcode.POP, Segment.POINTER, 0);
+        }
+        if (leaf.setsThat) {
+            out.add(Opcode.PUSH, Segment.LOCAL, saved + (leaf.setsThis ? 1 : 0));
+            out.add(Opcode.POP, Segment.POINTER, 1);
+        }
+        return saved + (leaf.setsThis ? 1 : 0) + (leaf.setsThat ? 1 : 0) - base;
+    }
+
+    int sites() {
+        int total = 0;
+        for (int n : sites.values()) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Call sites inlined, commands before and after, and the sites of every inlined function.
+     */
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("inliner: %d call sites of %d functions, %d -> %d commands (+%.1f%%)%n",
+                sites(), sites.size(), commandsBefore, commandsAfter,
+                commandsBefore == 0 ? 0.0 : 100.0 * (commandsAfter - commandsBefore) / commandsBefore));
+        for (Map.Entry<String, Integer> entry : sites.entrySet()) {
+            sb.append(String.format("  %-40s %d%n", entry.getKey(), entry.getValue()));
+        }
+        return sb.toString();
+    }
+}
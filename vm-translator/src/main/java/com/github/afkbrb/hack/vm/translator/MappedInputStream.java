@@ -0,0 +1,77 @@
+package com.github.afkbrb.hack.vm.translator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read a file through FileChannel.map, the bytes are copied straight from the page cache
+ * into the caller's buffer, without read() system calls or charset decoding.
+ * Files larger than 1GB are mapped region by region.
+ *
+ * The assembler and the translator are separate Maven projects, each has a copy of this class:
+ * hack-assembler/.../asm/MappedInputStream.java and vm-translator/.../translator/MappedInputStream.java.
+ * Keep them the same but for the package.
+ */
+final class MappedInputStream extends InputStream {
+
+    private static final long REGION_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private long regionEnd = 0;
+
+    private MappedByteBuffer region;
+
+    MappedInputStream(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        size = channel.size();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextRegion()) {
+            return -1;
+        }
+        return region.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextRegion()) {
+            return -1;
+        }
+        int n = Math.min(len, region.remaining());
+        region.get(b, off, n);
+        return n;
+    }
+
+    /**
+     * Make sure the current region has bytes left, return false if EOF reached.
+     */
+    private boolean nextRegion() throws IOException {
+        if (region != null && region.hasRemaining()) {
+            return true;
+        }
+        if (regionEnd >= size) {
+            return false;
+        }
+        long length = Math.min(REGION_SIZE, size - regionEnd);
+        region = channel.map(FileChannel.MapMode.READ_ONLY, regionEnd, length);
+        regionEnd += length;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.afkbrb.hack.vm.translator;
+
+import com.github.afkbrb.hack.vm.translator.Parser.CommandType;
+
+/**
+ * The vm commands, push and pop take a Segment and an index.
+ *
+ * The ones after RETURN are made by VMOptimizer only, they can't be parsed.
+ */
+enum Opcode {
+
+    ADD("add", CommandType.ARITHMETIC),
+    SUB("sub", CommandType.ARITHMETIC),
+    NEG("neg", CommandType.ARITHMETIC),
+    EQ("eq", CommandType.ARITHMETIC),
+    GT("gt", CommandType.ARITHMETIC),
+    LT("lt", CommandType.ARITHMETIC),
+    AND("and", CommandType.ARITHMETIC),
+    OR("or", CommandType.ARITHMETIC),
+    NOT("not", CommandType.ARITHMETIC),
+    PUSH("push", CommandType.MEMORY),
+    POP("pop", CommandType.MEMORY),
+    LABEL("label", CommandType.BRANCH),
+    GOTO("goto", CommandType.BRANCH),
+    IF_GOTO("if-goto", CommandType.BRANCH),
+    FUNCTION("function", CommandType.FUNCTION),
+    CALL("call", CommandType.FUNCTION),
+    RETURN("return", CommandType.FUNCTION),
+    MOVE("move", CommandType.MEMORY), // push segment index, pop targetSegment targetIndex
+    IF_EQ("if-eq", CommandType.BRANCH), // x y eq if-goto label
+    IF_NE("if-ne", CommandType.BRANCH), // x y eq not if-goto label
+    IF_GT("if-gt", CommandType.BRANCH),
+    IF_LE("if-le", CommandType.BRANCH),
+    IF_LT("if-lt", CommandType.BRANCH),
+    IF_GE("if-ge", CommandType.BRANCH);
+
+    static final Opcode[] VALUES = values();
+
+    static final int PARSED = RETURN.ordinal() + 1; // the number of opcodes of vm files
+
+    final String text; // as in the vm file
+
+    final CommandType type;
+
+    Opcode(String text, CommandType type) {
+        this.text = text;
+        this.type = type;
+    }
+}
@@ -1,28 +1,63 @@
 package com.github.afkbrb.hack.vm.translator;
 
 import java.io.*;
-import java.util.StringTokenizer;
-
-import static com.github.afkbrb.hack.vm.translator.Parser.CommandType.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class Parser implements AutoCloseable {
 
-    private CommandType type;
-    private String action;
-    private String segment;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final int MAX_INT = 32767;
+
+    private static final long MAP_THRESHOLD = 1 << 20; // map the big files instead of reading them
+
+    // the actions and segments are matched against these without creating a String
+    private static final String[] ACTIONS = new String[Opcode.PARSED];
+    private static final String[] SEGMENTS = new String[Segment.VALUES.length];
+
+    static {
+        for (int i = 0; i < Opcode.PARSED; i++) {
+            ACTIONS[i] = Opcode.VALUES[i].text;
+        }
+        for (Segment segment : Segment.VALUES) {
+            SEGMENTS[segment.ordinal()] = segment.text;
+        }
+    }
+
+    private Opcode opcode;
+    private Segment segment;
     private int index;
     private String label;
     private String functionName;
     private int nVars;
     private int nArgs;
 
-    private BufferedReader reader;
+    private final InputStream in;
+
+    // Lines are scanned in place: buf[pos, limit) holds the bytes not consumed yet.
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private int lineStart; // start of the line returned by nextLine()
+
+    // [start, end) of the tokens of the current line
+    private final int[] tokenStart = new int[3];
+    private final int[] tokenEnd = new int[3];
 
     private boolean hasMoreCommands;
 
+    private int lineno = 0;
+
     // One file, one Parser.
-    public Parser(File file) throws FileNotFoundException {
-        reader = new BufferedReader(new FileReader(file));
+    public Parser(File file) throws IOException {
+        this(file, MAP_THRESHOLD);
+    }
+
+    // Files of mapThreshold bytes or more are mapped.
+    Parser(File file, long mapThreshold) throws IOException {
+        in = file.length() >= mapThreshold ? new MappedInputStream(file) : new FileInputStream(file);
     }
 
     public boolean hasMoreCommand() throws IOException {
@@ -32,81 +67,179 @@ public class Parser implements AutoCloseable {
     // We've read a line of command, we now parser it.
     public void advance() throws IOException {
         hasMoreCommands = false;
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (line.contains("//")) { // 可能是一个注释一行，也有可能是注释跟在指令后面
-                line = line.substring(0, line.indexOf("//"));
-            }
-            line = line.trim();
-            if (line.length() == 0) {
-                continue;
+        int tokens;
+        while (true) {
+            int end = nextLine();
+            if (end == -1) return; // EOF reached
+            lineno++;
+            for (int i = lineStart; i < end - 1; i++) { // 可能是一个注释一行，也有可能是注释跟在指令后面
+                if (buf[i] == '/' && buf[i + 1] == '/') {
+                    end = i;
+                    break;
+                }
             }
-            hasMoreCommands = true;
-            break;
+            tokens = tokenize(lineStart, end);
+            if (tokens > 0) break;
         }
-        if (!hasMoreCommands) return;
-
-        assert line != null;
-        StringTokenizer tokenizer = new StringTokenizer(line);
-        assert tokenizer.hasMoreTokens();
-        action = tokenizer.nextToken();
-        switch (action) {
-            case "add":
-            case "sub":
-            case "neg":
-            case "eq":
-            case "gt":
-            case "lt":
-            case "and":
-            case "or":
-            case "not":
-                type = ARITHMETIC;
+        hasMoreCommands = true;
+
+        int action = match(ACTIONS, 0);
+        if (action == -1) {
+            throw new IllegalStateException(String.format("bug, action: %s", token(0)));
+        }
+        opcode = Opcode.VALUES[action];
+        switch (opcode.type) {
+            case ARITHMETIC:
                 break;
-            case "push":
-            case "pop":
-                type = MEMORY;
-                assert tokenizer.hasMoreTokens();
-                segment = tokenizer.nextToken();
-                assert tokenizer.hasMoreTokens();
-                index = Integer.parseInt(tokenizer.nextToken());
+            case MEMORY:
+                expectTokens(tokens, 3);
+                int segmentIndex = match(SEGMENTS, 1);
+                if (segmentIndex == -1 || (opcode == Opcode.POP && segmentIndex == Segment.CONSTANT.ordinal())) {
+                    throw new IllegalStateException(String.format("bug, segment: %s", token(1)));
+                }
+                segment = Segment.VALUES[segmentIndex];
+                index = parseInt(2);
                 break;
-            case "label":
-            case "goto":
-            case "if-goto":
-                type = BRANCH;
-                assert tokenizer.hasMoreTokens();
-                label = tokenizer.nextToken();
+            case BRANCH:
+                expectTokens(tokens, 2);
+                label = token(1);
                 break;
-            case "function":
-            case "call":
-            case "return":
-                type = FUNCTION;
-                if (action.equals("return")) {
+            default:
+                if (opcode == Opcode.RETURN) {
                     break;
                 }
-                assert tokenizer.hasMoreTokens();
-                functionName = tokenizer.nextToken();
-                assert tokenizer.hasMoreTokens();
-                if (action.equals("function")) {
-                    nVars = Integer.parseInt(tokenizer.nextToken());
+                expectTokens(tokens, 3);
+                functionName = token(1);
+                if (opcode == Opcode.FUNCTION) {
+                    nVars = parseInt(2);
                 } else {
-                    nArgs = Integer.parseInt(tokenizer.nextToken());
+                    nArgs = parseInt(2);
                 }
-                break;
-            default:
-                throw new IllegalStateException(String.format("bug, action: %s", action));
         }
     }
 
+    /**
+     * Move to the next line, set lineStart and return the end(exclusive) of it,
+     * or -1 if EOF reached.
+     */
+    private int nextLine() throws IOException {
+        int i = pos;
+        while (true) {
+            while (i < limit) {
+                if (buf[i] == '\n') {
+                    lineStart = pos;
+                    pos = i + 1;
+                    return i;
+                }
+                i++;
+            }
+            if (eof) {
+                if (pos == limit) return -1;
+                lineStart = pos;
+                pos = limit;
+                return limit;
+            }
+            // the line goes beyond the buffer, move it to the front and read more
+            int remaining = limit - pos;
+            if (remaining == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            } else {
+                System.arraycopy(buf, pos, buf, 0, remaining);
+            }
+            i -= pos;
+            pos = 0;
+            limit = remaining;
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n == -1) {
+                eof = true;
+            } else {
+                limit += n;
+            }
+        }
+    }
+
+    /**
+     * Split buf[start, end) by blanks, return the number of tokens(at most 3 are kept).
+     */
+    private int tokenize(int start, int end) {
+        int count = 0;
+        int i = start;
+        while (true) {
+            while (i < end && isBlank(buf[i])) i++;
+            if (i == end) return count;
+            int tokenBegin = i;
+            while (i < end && !isBlank(buf[i])) i++;
+            if (count < 3) {
+                tokenStart[count] = tokenBegin;
+                tokenEnd[count] = i;
+            }
+            count++;
+        }
+    }
+
+    private void expectTokens(int tokens, int expected) {
+        if (tokens < expected) {
+            throw new IllegalStateException(String.format("bug, %s expects %d arguments", opcode.text, expected - 1));
+        }
+    }
+
+    private static boolean isBlank(byte b) {
+        return (b & 0xff) <= ' ';
+    }
+
+    private String token(int n) {
+        return new String(buf, tokenStart[n], tokenEnd[n] - tokenStart[n], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Return the index of the word equal to the n-th token, -1 if there's none.
+     */
+    private int match(String[] words, int n) {
+        int start = tokenStart[n];
+        int length = tokenEnd[n] - start;
+        for (int w = 0; w < words.length; w++) {
+            String word = words[w];
+            if (word.length() != length) continue;
+            int i = 0;
+            while (i < length && buf[start + i] == word.charAt(i)) i++;
+            if (i == length) return w;
+        }
+        return -1;
+    }
+
+    // Hack addresses and constants are 15 bits, anything bigger is rejected before it can overflow.
+    private int parseInt(int n) {
+        int value = 0;
+        for (int i = tokenStart[n]; i < tokenEnd[n]; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("For input string: \"" + token(n) + "\"");
+            }
+            value = value * 10 + digit;
+            if (value > MAX_INT) {
+                throw new NumberFormatException("Out of range [0, " + MAX_INT + "]: \"" + token(n) + "\"");
+            }
+        }
+        return value;
+    }
+
     public CommandType type() {
-        return type;
+        return opcode.type;
     }
 
     public String action() {
-        return action;
+        return opcode.text;
     }
 
     public String segment() {
+        return segment.text;
+    }
+
+    Opcode opcode() {
+        return opcode;
+    }
+
+    Segment segmentType() {
         return segment;
     }
 
@@ -130,9 +263,14 @@ public class Parser implements AutoCloseable {
         return nArgs;
     }
 
+    // Return the number of lines read so far.
+    public int lineno() {
+        return lineno;
+    }
+
     @Override
     public void close() throws IOException {
-        reader.close();
+        in.close();
     }
 
     enum CommandType {
@@ -0,0 +1,27 @@
+package com.github.afkbrb.hack.vm.translator;
+
+/**
+ * The memory segments of push and pop.
+ */
+enum Segment {
+
+    LOCAL("local", "LCL"),
+    ARGUMENT("argument", "ARG"),
+    THIS("this", "THIS"),
+    THAT("that", "THAT"),
+    POINTER("pointer", null),
+    CONSTANT("constant", null),
+    STATIC("static", null),
+    TEMP("temp", null);
+
+    static final Segment[] VALUES = values();
+
+    final String text; // as in the vm file
+
+    final String base; // the pointer to the segment, null if it has none
+
+    Segment(String text, String base) {
+        this.text = text;
+        this.base = base;
+    }
+}
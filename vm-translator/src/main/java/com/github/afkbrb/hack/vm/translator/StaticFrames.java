@@ -0,0 +1,240 @@
+package com.github.afkbrb.hack.vm.translator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Give the functions that are not recursive a frame at a fixed RAM address.
+ *
+ * A function is recursive if it can call itself, directly or through other functions,
+ * that is if it's in a cycle of the call graph. The others are active at most once at
+ * a time, so their return address, arguments and locals can live at fixed addresses,
+ * and `push local 2` is a direct load. Two such functions share RAM if neither can
+ * call the other: a frame starts above the frames of all the functions that may call
+ * it, which the strongly connected components of the call graph give in topological
+ * order. The frames start at 256 and the stack starts above them, a function whose
+ * frame would end above MAX_SIZE keeps the dynamic frame.
+ */
+final class StaticFrames {
+
+    static final int BASE = 256;
+
+    static final int MAX_SIZE = 1024; // leaves 768 words to the stack below the heap at 2048
+
+    /**
+     * The slots of a static frame.
+     */
+    static final class Frame {
+
+        final int returnAddress;
+
+        final int stackPointer; // SP on entry, the return value goes there
+
+        final int savedThis; // -1 if the function doesn't set THIS
+
+        final int savedThat; // -1 if the function doesn't set THAT
+
+        final int arguments;
+
+        final int locals;
+
+        final int size;
+
+        Frame(int base, boolean savesThis, boolean savesThat, int nArgs, int nVars) {
+            int slot = base;
+            returnAddress = slot++;
+            stackPointer = slot++;
+            savedThis = savesThis ? slot++ : -1;
+            savedThat = savesThat ? slot++ : -1;
+            arguments = slot;
+            slot += nArgs;
+            locals = slot;
+            slot += nVars;
+            size = slot - base;
+        }
+    }
+
+    private final Map<String, Frame> frames = new HashMap<>();
+
+    private int functions;
+
+    private int recursive;
+
+    private int size;
+
+    /**
+     * Allocate the frames of the functions of the whole program.
+     */
+    void allocate(List<VMProgram> programs) {
+        frames.clear();
+        List<String> names = new ArrayList<>();
+        Map<String, Integer> ids = new HashMap<>();
+        List<int[]> ranges = new ArrayList<>(); // {program, start, end}
+        for (int p = 0; p < programs.size(); p++) {
+            VMProgram program = programs.get(p);
+            int start = -1;
+            for (int i = 0; i <= program.size(); i++) {
+                if (i == program.size() || program.opcode(i) == Opcode.FUNCTION) {
+                    if (start != -1 && ids.putIfAbsent(program.name(start), names.size()) == null) {
+                        names.add(program.name(start));
+                        ranges.add(new int[]{p, start, i});
+                    }
+                    start = i;
+                }
+            }
+        }
+
+        int n = names.size();
+        int[][] callees = new int[n][];
+        int[] nArgs = new int[n]; // the most arguments passed or read
+        int[] nVars = new int[n];
+        boolean[] setsThis = new boolean[n];
+        boolean[] setsThat = new boolean[n];
+        for (int f = 0; f < n; f++) {
+            int[] range = ranges.get(f);
+            VMProgram program = programs.get(range[0]);
+            nVars[f] = program.operand(range[1]);
+            List<Integer> calls = new ArrayList<>();
+            for (int i = range[1] + 1; i < range[2]; i++) {
+                Opcode opcode = program.opcode(i);
+                if (opcode == Opcode.CALL) {
+                    Integer callee = ids.get(program.name(i));
+                    if (callee != null) {
+                        calls.add(callee);
+                        nArgs[callee] = Math.max(nArgs[callee], program.operand(i));
+                    }
+                } else if (opcode == Opcode.PUSH || opcode == Opcode.POP) {
+                    Segment segment = program.segment(i);
+                    int index = program.operand(i);
+                    if (segment == Segment.ARGUMENT) {
+                        nArgs[f] = Math.max(nArgs[f], index + 1);
+                    } else if (segment == Segment.LOCAL) {
+                        nVars[f] = Math.max(nVars[f], index + 1);
+                    } else if (segment == Segment.POINTER && opcode == Opcode.POP) {
+                        setsThis[f] |= index == 0;
+                        setsThat[f] |= index == 1;
+                    }
+                }
+            }
+            callees[f] = calls.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        int[] component = components(callees);
+        int components = 0;
+        int[] componentSize = new int[n];
+        for (int f = 0; f < n; f++) {
+            components = Math.max(components, component[f] + 1);
+            componentSize[component[f]]++;
+        }
+        // a component comes after the components it calls, so callers go first from the end
+        Integer[] order = new Integer[n];
+        for (int f = 0; f < n; f++) {
+            order[f] = f;
+        }
+        Arrays.sort(order, (f, g) -> component[g] - component[f]);
+        int[] top = new int[components]; // the end of the frames that may be active on entry
+        functions = n;
+        recursive = 0;
+        size = 0;
+        for (int f : order) {
+            int c = component[f];
+            boolean isRecursive = componentSize[c] > 1;
+            for (int callee : callees[f]) {
+                isRecursive |= callee == f;
+            }
+            int end = top[c];
+            if (isRecursive) {
+                recursive++;
+            } else {
+                Frame frame = new Frame(BASE + top[c], setsThis[f], setsThat[f], nArgs[f], nVars[f]);
+                if (top[c] + frame.size <= MAX_SIZE) {
+                    frames.put(names.get(f), frame);
+                    end += frame.size;
+                }
+            }
+            size = Math.max(size, end);
+            for (int callee : callees[f]) {
+                if (component[callee] != c) {
+                    top[component[callee]] = Math.max(top[component[callee]], end);
+                }
+            }
+        }
+    }
+
+    // Tarjan's strongly connected components, numbered callees first, without recursion
+    // since call chains may be long.
+    private static int[] components(int[][] callees) {
+        int n = callees.length;
+        int[] index = new int[n];
+        Arrays.fill(index, -1);
+        int[] low = new int[n];
+        int[] next = new int[n]; // the next callee to visit
+        int[] component = new int[n];
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int[] path = new int[n];
+        int sp = 0;
+        int counter = 0;
+        int components = 0;
+        for (int root = 0; root < n; root++) {
+            if (index[root] != -1) continue;
+            int depth = 0;
+            path[depth++] = root;
+            index[root] = low[root] = counter++;
+            stack[sp++] = root;
+            onStack[root] = true;
+            while (depth > 0) {
+                int f = path[depth - 1];
+                if (next[f] < callees[f].length) {
+                    int g = callees[f][next[f]++];
+                    if (index[g] == -1) {
+                        index[g] = low[g] = counter++;
+                        stack[sp++] = g;
+                        onStack[g] = true;
+                        path[depth++] = g;
+                    } else if (onStack[g]) {
+                        low[f] = Math.min(low[f], index[g]);
+                    }
+                    continue;
+                }
+                depth--;
+                if (depth > 0) {
+                    int caller = path[depth - 1];
+                    low[caller] = Math.min(low[caller], low[f]);
+                }
+                if (low[f] == index[f]) {
+                    int g;
+                    do {
+                        g = stack[--sp];
+                        onStack[g] = false;
+                        component[g] = components;
+                    } while (g != f);
+                    components++;
+                }
+            }
+        }
+        return component;
+    }
+
+    /**
+     * Return the static frame of the function, null if it keeps the dynamic frame.
+     */
+    Frame frame(String function) {
+        return frames.get(function);
+    }
+
+    /**
+     * Return the words taken by the frames, the stack starts at BASE + size().
+     */
+    int size() {
+        return size;
+    }
+
+    String report() {
+        return String.format("static frames: %d of %d functions, %d recursive, %d words at %d%n",
+                frames.size(), functions, recursive, size, BASE);
+    }
+}
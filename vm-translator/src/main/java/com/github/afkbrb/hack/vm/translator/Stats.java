@@ -0,0 +1,154 @@
+package com.github.afkbrb.hack.vm.translator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wall time per phase and counters of a run, main prints them with --stats or --stats-json.
+ *
+ * The peak heap is the sum of the peaks of the heap pools, which may not have been reached
+ * at the same time, so it's an upper bound. The allocated bytes are the ones of the thread
+ * that created the Stats plus those of the tasks wrapped by track() on worker threads,
+ * -1 if the JVM can't tell.
+ *
+ * The assembler, the translator and the compiler are separate Maven projects, each has
+ * a copy of this class: hack-assembler/.../asm/Stats.java, vm-translator/.../translator/Stats.java
+ * and jack-compiler/.../compiler/Stats.java. Keep them the same but for the package.
+ */
+public class Stats {
+
+    private final String tool;
+
+    private final Map<String, Long> phases = new LinkedHashMap<>(); // nanoseconds
+
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+
+    private final long startTime = System.nanoTime();
+
+    private final Thread owner = Thread.currentThread();
+
+    private final long startAllocated = allocatedBytes();
+
+    private final AtomicLong workerAllocated = new AtomicLong();
+
+    private String phase;
+
+    private long phaseStart;
+
+    public Stats(String tool) {
+        this.tool = tool;
+    }
+
+    /**
+     * Start timing phase, the current phase ends here.
+     */
+    public void begin(String phase) {
+        end();
+        this.phase = phase;
+        phaseStart = System.nanoTime();
+    }
+
+    /**
+     * End the current phase, a phase run more than once is summed up.
+     */
+    public void end() {
+        if (phase != null) {
+            phases.merge(phase, System.nanoTime() - phaseStart, Long::sum);
+            phase = null;
+        }
+    }
+
+    public void count(String counter, long n) {
+        counters.merge(counter, n, Long::sum);
+    }
+
+    public long counter(String counter) {
+        return counters.getOrDefault(counter, 0L);
+    }
+
+    /**
+     * Wrap task so that the bytes it allocates on a worker thread count as well.
+     */
+    public <T> Callable<T> track(Callable<T> task) {
+        return () -> {
+            if (Thread.currentThread() == owner) {
+                return task.call(); // counted already
+            }
+            long start = allocatedBytes();
+            try {
+                return task.call();
+            } finally {
+                long end = allocatedBytes();
+                if (start != -1 && end != -1) {
+                    workerAllocated.addAndGet(end - start);
+                }
+            }
+        };
+    }
+
+    public String toText() {
+        end();
+        StringBuilder sb = new StringBuilder(tool).append(" stats\n");
+        for (Map.Entry<String, Long> entry : phases.entrySet()) {
+            sb.append(String.format("  %-24s %10.2f ms%n", entry.getKey(), entry.getValue() / 1e6));
+        }
+        sb.append(String.format("  %-24s %10.2f ms%n", "total", (System.nanoTime() - startTime) / 1e6));
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            sb.append(String.format("  %-24s %10d%n", entry.getKey(), entry.getValue()));
+        }
+        sb.append(String.format("  %-24s %10d bytes%n", "peak heap", peakHeap()));
+        sb.append(String.format("  %-24s %10d bytes%n", "allocated", allocated()));
+        return sb.toString();
+    }
+
+    public String toJson() {
+        end();
+        StringBuilder sb = new StringBuilder("{\"tool\":\"").append(tool).append("\",\"phases_ms\":{");
+        String separator = "";
+        for (Map.Entry<String, Long> entry : phases.entrySet()) {
+            sb.append(separator).append('"').append(entry.getKey()).append("\":")
+                    .append(String.format(Locale.ROOT, "%.3f", entry.getValue() / 1e6));
+            separator = ",";
+        }
+        sb.append("},\"total_ms\":").append(String.format(Locale.ROOT, "%.3f", (System.nanoTime() - startTime) / 1e6));
+        sb.append(",\"counters\":{");
+        separator = "";
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            sb.append(separator).append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+            separator = ",";
+        }
+        sb.append("},\"peak_heap_bytes\":").append(peakHeap());
+        sb.append(",\"allocated_bytes\":").append(allocated()).append('}');
+        return sb.toString();
+    }
+
+    private long allocated() {
+        long allocated = allocatedBytes();
+        return allocated == -1 || startAllocated == -1 ? -1 : allocated - startAllocated + workerAllocated.get();
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.afkbrb.hack.vm.translator;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Find the locals of a function that may be read before they are written.
+ *
+ * A forward dataflow over the commands of the function: the locals surely written
+ * when control reaches a command are those written on every path from the entry to
+ * it, the intersection over the jumps and the fall through into it, iterated until
+ * nothing changes since loops jump backwards. A local read where it isn't surely
+ * written must be zeroed on entry, the others needn't be. Unreachable commands
+ * never read anything.
+ */
+final class UnassignedLocals {
+
+    private UnassignedLocals() {
+    }
+
+    /**
+     * Return the locals of the function at command start that may be read before written.
+     */
+    static BitSet of(VMProgram program, int start) {
+        int end = start + 1;
+        Map<Integer, Integer> labels = new HashMap<>(); // label => index
+        while (end < program.size() && program.opcode(end) != Opcode.FUNCTION) {
+            if (program.opcode(end) == Opcode.LABEL) {
+                labels.put(program.nameId(end), end);
+            }
+            end++;
+        }
+
+        BitSet[] written = new BitSet[end]; // on entry to command i, null if not reached yet
+        Deque<Integer> work = new ArrayDeque<>();
+        if (start + 1 < end) {
+            written[start + 1] = new BitSet();
+            work.push(start + 1);
+        }
+        while (!work.isEmpty()) {
+            int i = work.pop();
+            BitSet out = written[i];
+            if (writes(program, i) != -1) {
+                out = (BitSet) out.clone();
+                out.set(writes(program, i));
+            }
+            switch (program.opcode(i)) {
+                case RETURN:
+                    break;
+                case GOTO:
+                    flow(written, work, out, labels.get(program.nameId(i)));
+                    break;
+                case IF_GOTO:
+                case IF_EQ:
+                case IF_NE:
+                case IF_GT:
+                case IF_LE:
+                case IF_LT:
+                case IF_GE:
+                    flow(written, work, out, labels.get(program.nameId(i)));
+                    flow(written, work, out, i + 1 < end ? i + 1 : null);
+                    break;
+                default:
+                    flow(written, work, out, i + 1 < end ? i + 1 : null);
+            }
+        }
+
+        BitSet unassigned = new BitSet();
+        for (int i = start + 1; i < end; i++) {
+            int local = reads(program, i);
+            if (local != -1 && written[i] != null && !written[i].get(local)) {
+                unassigned.set(local);
+            }
+        }
+        return unassigned;
+    }
+
+    // Meet out into the command at next.
+    private static void flow(BitSet[] written, Deque<Integer> work, BitSet out, Integer next) {
+        if (next == null) return; // off the end, or a label of another function
+        if (written[next] == null) {
+            written[next] = (BitSet) out.clone();
+            work.push(next);
+            return;
+        }
+        BitSet meet = (BitSet) written[next].clone();
+        meet.and(out);
+        if (!meet.equals(written[next])) {
+            written[next] = meet;
+            work.push(next);
+        }
+    }
+
+    // Return the local read by command i, -1 if none.
+    private static int reads(VMProgram program, int i) {
+        Opcode opcode = program.opcode(i);
+        if ((opcode == Opcode.PUSH || opcode == Opcode.MOVE) && program.segment(i) == Segment.LOCAL) {
+            return program.operand(i);
+        }
+        return -1;
+    }
+
+    // Return the local written by command i, -1 if none.
+    private static int writes(VMProgram program, int i) {
+        Opcode opcode = program.opcode(i);
+        if (opcode == Opcode.POP && program.segment(i) == Segment.LOCAL) {
+            return program.operand(i);
+        }
+        if (opcode == Opcode.MOVE && program.targetSegment(i) == Segment.LOCAL) {
+            return program.targetOperand(i);
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,209 @@
+package com.github.afkbrb.hack.vm.translator;
+
+/**
+ * Rewrite the patterns the Jack compiler emits a lot into fewer commands.
+ *
+ * Every command is appended to the output, then the rules are tried on the tail
+ * of the output until none applies, so the result of a rule can feed the next one,
+ * as in push constant 1; push constant 2; add; neg. The patterns are made of
+ * consecutive commands, a label in between stops them, so control can't enter
+ * a pattern in the middle.
+ *
+ * Constants are folded with the 16-bit arithmetic of the Hack CPU, comparisons
+ * included (x > y is x - y > 0, overflow and all), so the folded program computes
+ * what the original does. A folded constant may be negative, CodeWriter handles it.
+ *
+ * A comparison followed by if-goto, or by not and if-goto, becomes one of the IF_xx
+ * opcodes, the jump tests x - y directly instead of making -1 or 0 and testing it:
+ * not (x < y) is x - y >= 0 with the same overflow as the comparison.
+ */
+final class VMOptimizer {
+
+    enum Rule {
+        FOLD("constant folding"),
+        IDENTITY("x + 0, x - 0, x | 0, x & -1"),
+        DOUBLE_UNARY("not not, neg neg"),
+        MOVE("push/pop moves"),
+        SAME("push/pop of the same location"),
+        COMPARE_IF("compare and if-goto");
+
+        private final String description;
+
+        Rule(String description) {
+            this.description = description;
+        }
+    }
+
+    private final int[] hits = new int[Rule.values().length];
+
+    private int commandsBefore;
+
+    private int commandsAfter;
+
+    /**
+     * Return the optimized program.
+     */
+    VMProgram optimize(VMProgram program) {
+        VMProgram out = new VMProgram(program.filename);
+        for (int i = 0; i < program.size(); i++) {
+            out.add(program, i);
+            while (rewrite(out)) {
+                // until nothing applies to the tail
+            }
+        }
+        commandsBefore += program.size();
+        commandsAfter += out.size();
+        return out;
+    }
+
+    private boolean rewrite(VMProgram out) {
+        int n = out.size();
+        if (n < 2) return false;
+        Opcode last = out.opcode(n - 1);
+        switch (last) {
+            case ADD:
+            case SUB:
+            case AND:
+            case OR:
+            case EQ:
+            case GT:
+            case LT:
+                if (n >= 3 && isConstant(out, n - 3) && isConstant(out, n - 2)) {
+                    int value = fold(last, out.operand(n - 3), out.operand(n - 2));
+                    replace(out, 3, value, Rule.FOLD);
+                    return true;
+                }
+                if (isConstant(out, n - 2) && isIdentity(last, out.operand(n - 2))) {
+                    out.truncate(n - 2);
+                    hits[Rule.IDENTITY.ordinal()]++;
+                    return true;
+                }
+                return false;
+            case NEG:
+            case NOT:
+                if (isConstant(out, n - 2)) {
+                    int x = out.operand(n - 2);
+                    replace(out, 2, (short) (last == Opcode.NEG ? -x : ~x), Rule.FOLD);
+                    return true;
+                }
+                if (out.opcode(n - 2) == last) {
+                    out.truncate(n - 2);
+                    hits[Rule.DOUBLE_UNARY.ordinal()]++;
+                    return true;
+                }
+                return false;
+            case IF_GOTO:
+                boolean not = out.opcode(n - 2) == Opcode.NOT;
+                int compare = not ? n - 3 : n - 2;
+                if (compare < 0) return false;
+                Opcode fused = fuse(out.opcode(compare), not);
+                if (fused == null) return false;
+                String label = out.name(n - 1);
+                out.truncate(compare);
+                out.add(fused, label, 0);
+                hits[Rule.COMPARE_IF.ordinal()]++;
+                return true;
+            case POP:
+                if (out.opcode(n - 2) != Opcode.PUSH) return false;
+                if (out.nameId(n - 2) != -1 || out.nameId(n - 1) != -1) return false; // static of another file
+                Segment source = out.segment(n - 2);
+                int index = out.operand(n - 2);
+                Segment target = out.segment(n - 1);
+                int targetIndex = out.operand(n - 1);
+                out.truncate(n - 2);
+                if (source == target && index == targetIndex) {
+                    hits[Rule.SAME.ordinal()]++;
+                } else {
+                    out.addMove(source, index, target, targetIndex);
+                    hits[Rule.MOVE.ordinal()]++;
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Return the opcode of comparison; (not;) if-goto, null if it isn't one.
+    private static Opcode fuse(Opcode comparison, boolean not) {
+        switch (comparison) {
+            case EQ:
+                return not ? Opcode.IF_NE : Opcode.IF_EQ;
+            case GT:
+                return not ? Opcode.IF_LE : Opcode.IF_GT;
+            case LT:
+                return not ? Opcode.IF_GE : Opcode.IF_LT;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isConstant(VMProgram program, int i) {
+        return program.opcode(i) == Opcode.PUSH && program.segment(i) == Segment.CONSTANT;
+    }
+
+    private static boolean isIdentity(Opcode opcode, int y) {
+        switch (opcode) {
+            case ADD:
+            case SUB:
+            case OR:
+                return y == 0;
+            case AND:
+                return y == -1;
+            default:
+                return false;
+        }
+    }
+
+    // x op y as the Hack CPU computes it
+    private static int fold(Opcode opcode, int x, int y) {
+        switch (opcode) {
+            case ADD:
+                return (short) (x + y);
+            case SUB:
+                return (short) (x - y);
+            case AND:
+                return (short) (x & y);
+            case OR:
+                return (short) (x | y);
+            case EQ:
+                return (short) (x - y) == 0 ? -1 : 0;
+            case GT:
+                return (short) (x - y) > 0 ? -1 : 0;
+            default: // LT
+                return (short) (x - y) < 0 ? -1 : 0;
+        }
+    }
+
+    // replace the last n commands with push constant value
+    private void replace(VMProgram out, int n, int value, Rule rule) {
+        out.truncate(out.size() - n);
+        out.add(Opcode.PUSH, Segment.CONSTANT, value);
+        hits[rule.ordinal()]++;
+    }
+
+    // Add the hits and commands of other, which optimized other files.
+    void merge(VMOptimizer other) {
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] += other.hits[i];
+        }
+        commandsBefore += other.commandsBefore;
+        commandsAfter += other.commandsAfter;
+    }
+
+    int hits(Rule rule) {
+        return hits[rule.ordinal()];
+    }
+
+    /**
+     * Commands before and after, and the hits of every rule.
+     */
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("vm optimizer: %d -> %d commands (-%.1f%%)%n", commandsBefore, commandsAfter,
+                commandsBefore == 0 ? 0.0 : 100.0 * (commandsBefore - commandsAfter) / commandsBefore));
+        for (Rule rule : Rule.values()) {
+            sb.append(String.format("  %-32s %d%n", rule.description, hits[rule.ordinal()]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,181 @@
+package com.github.afkbrb.hack.vm.translator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The commands of one vm file, parsed once into primitive arrays.
+ *
+ * Command i is opcodes[i] with segments[i] and operands[i] (index for push and pop,
+ * nVars for function and nArgs for call), and names[i], the id of its label or
+ * function name, -1 if it has none. Names are interned per program, so equal names
+ * have equal ids and passes can compare them as ints. A push or pop of a static
+ * variable of another file, inlined from there, has the name of that file. A move
+ * also has a target segment and index, packed in targets[i].
+ */
+final class VMProgram {
+
+    private static final byte NO_SEGMENT = -1;
+
+    final String filename; // the name of the vm file without extension, for static variables
+
+    private byte[] opcodes = new byte[256];
+    private byte[] segments = new byte[256];
+    private int[] operands = new int[256];
+    private int[] names = new int[256];
+    private int[] targets = new int[256]; // segment << 16 | index
+    private int size = 0;
+
+    private final List<String> symbols = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    private int lines = 0;
+
+    VMProgram(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Parse a vm file.
+     */
+    static VMProgram parse(File file) throws IOException {
+        VMProgram program = new VMProgram(file.getName().split("\\.")[0]);
+        try (Parser parser = new Parser(file)) {
+            parser.advance();
+            while (parser.hasMoreCommand()) {
+                Opcode opcode = parser.opcode();
+                switch (opcode.type) {
+                    case ARITHMETIC:
+                        program.add(opcode);
+                        break;
+                    case MEMORY:
+                        program.add(opcode, parser.segmentType(), parser.index());
+                        break;
+                    case BRANCH:
+                        program.add(opcode, parser.label(), 0);
+                        break;
+                    default:
+                        if (opcode == Opcode.RETURN) {
+                            program.add(opcode);
+                        } else {
+                            program.add(opcode, parser.functionName(),
+                                    opcode == Opcode.FUNCTION ? parser.nVars() : parser.nArgs());
+                        }
+                }
+                parser.advance();
+            }
+            program.lines = parser.lineno();
+        }
+        return program;
+    }
+
+    void add(Opcode opcode) {
+        add(opcode, NO_SEGMENT, 0, -1);
+    }
+
+    void add(Opcode opcode, Segment segment, int index) {
+        add(opcode, (byte) segment.ordinal(), index, -1);
+    }
+
+    void add(Opcode opcode, String name, int operand) {
+        add(opcode, NO_SEGMENT, operand, id(name));
+    }
+
+    // push or pop static index of another file
+    void addStatic(Opcode opcode, String filename, int index) {
+        add(opcode, (byte) Segment.STATIC.ordinal(), index, id(filename));
+    }
+
+    void addMove(Segment source, int index, Segment target, int targetIndex) {
+        add(Opcode.MOVE, (byte) source.ordinal(), index, -1);
+        targets[size - 1] = target.ordinal() << 16 | targetIndex;
+    }
+
+    /**
+     * Append command i of program.
+     */
+    void add(VMProgram program, int i) {
+        add(program.opcode(i), program.segments[i], program.operands[i],
+                program.names[i] == -1 ? -1 : id(program.name(i)));
+        targets[size - 1] = program.targets[i];
+    }
+
+    private void add(Opcode opcode, byte segment, int operand, int name) {
+        if (size == opcodes.length) {
+            opcodes = Arrays.copyOf(opcodes, size * 2);
+            segments = Arrays.copyOf(segments, size * 2);
+            operands = Arrays.copyOf(operands, size * 2);
+            names = Arrays.copyOf(names, size * 2);
+            targets = Arrays.copyOf(targets, size * 2);
+        }
+        opcodes[size] = (byte) opcode.ordinal();
+        segments[size] = segment;
+        operands[size] = operand;
+        names[size] = name;
+        targets[size] = 0;
+        size++;
+    }
+
+    /**
+     * Drop the commands from size on.
+     */
+    void truncate(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Return the id of name, interning it if it's new.
+     */
+    int id(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = symbols.size();
+            symbols.add(name);
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Opcode opcode(int i) {
+        return Opcode.VALUES[opcodes[i]];
+    }
+
+    Segment segment(int i) {
+        return segments[i] == NO_SEGMENT ? null : Segment.VALUES[segments[i]];
+    }
+
+    int operand(int i) {
+        return operands[i];
+    }
+
+    Segment targetSegment(int i) {
+        return Segment.VALUES[targets[i] >>> 16];
+    }
+
+    int targetOperand(int i) {
+        return targets[i] & 0xffff;
+    }
+
+    // Return the id of the name of command i, -1 if it has none.
+    int nameId(int i) {
+        return names[i];
+    }
+
+    String name(int i) {
+        return names[i] == -1 ? null : symbols.get(names[i]);
+    }
+
+    // Return the number of lines of the vm file.
+    int lines() {
+        return lines;
+    }
+}
@@ -1,7 +1,17 @@
 package com.github.afkbrb.hack.vm.translator;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class VMTranslator implements AutoCloseable {
 
@@ -11,6 +21,29 @@ public class VMTranslator implements AutoCloseable {
 
     private final File target;
 
+    private final Stats stats = new Stats("vm-translator");
+
+    private final int[] commandCounts = new int[Opcode.VALUES.length];
+
+    private boolean sharedCallReturn = false;
+
+    private boolean cacheTop = false;
+
+    private boolean tailCalls = false;
+
+    private boolean compactLocals = false;
+
+    private boolean shortEncodings = false;
+
+    private VMOptimizer optimizer; // null if not optimizing
+
+    private DeadFunctionEliminator eliminator; // null if not eliminating
+
+    private Inliner inliner; // null if not inlining
+
+    private StaticFrames staticFrames; // null if every frame is dynamic
+
+    private int parallelism = 1;
 
     public VMTranslator(File source) throws IOException {
         this.source = source;
@@ -23,91 +56,380 @@ public class VMTranslator implements AutoCloseable {
         }
     }
 
+    // Use the shared $$CALL and $$RETURN routines, see CodeWriter.setSharedCallReturn.
+    public void setSharedCallReturn(boolean sharedCallReturn) {
+        this.sharedCallReturn = sharedCallReturn;
+    }
+
+    // Keep the top of the stack in D, see CodeWriter.setCacheTop.
+    public void setCacheTop(boolean cacheTop) {
+        this.cacheTop = cacheTop;
+    }
+
+    // Reuse the frame of the caller for a call followed by return, see CodeWriter.setTailCalls.
+    public void setTailCalls(boolean tailCalls) {
+        this.tailCalls = tailCalls;
+    }
+
+    // Zero the locals of a function compactly, see CodeWriter.setCompactLocals.
+    public void setCompactLocals(boolean compactLocals) {
+        this.compactLocals = compactLocals;
+    }
+
+    // Give every (segment, index) its shortest encoding, see CodeWriter.setShortEncodings.
+    public void setShortEncodings(boolean shortEncodings) {
+        this.shortEncodings = shortEncodings;
+    }
+
+    // Fold constants and fuse push/pop pairs before code generation, see VMOptimizer.
+    public void setOptimize(boolean optimize) {
+        optimizer = optimize ? new VMOptimizer() : null;
+    }
+
+    // Return the report of the optimizer, null if not optimizing.
+    public String optimizerReport() {
+        return optimizer == null ? null : optimizer.report();
+    }
+
+    // Only translate the functions reachable from Sys.init, see DeadFunctionEliminator.
+    public void setEliminateDeadCode(boolean eliminateDeadCode) {
+        eliminator = eliminateDeadCode ? new DeadFunctionEliminator() : null;
+    }
+
+    // Return the report of the dropped functions, null if not eliminating.
+    public String deadCodeReport() {
+        return eliminator == null ? null : eliminator.report();
+    }
+
+    // Inline the calls to leaf functions of at most threshold commands, 0 not to, see Inliner.
+    public void setInlineThreshold(int threshold) {
+        inliner = threshold > 0 ? new Inliner(threshold) : null;
+    }
+
+    // Return the report of the inliner, null if not inlining.
+    public String inlinerReport() {
+        return inliner == null ? null : inliner.report();
+    }
+
+    // Give the functions of a directory that are not recursive a frame at a fixed address,
+    // see StaticFrames. A single file has no bootstrap to move the stack, it's left as is.
+    public void setStaticFrames(boolean staticFrames) {
+        this.staticFrames = staticFrames ? new StaticFrames() : null;
+    }
+
+    // Return the report of the static frames, null if not allocating.
+    public String staticFramesReport() {
+        return staticFrames == null ? null : staticFrames.report();
+    }
+
+    // Translate the files of a directory with this many threads, each file into its own
+    // buffer, which are appended in the order of the file names, so the output is the
+    // same whatever the number of threads.
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    // Return the phase timings and counters of this translator.
+    public Stats stats() {
+        return stats;
+    }
+
     // Translate a file or directory.
     public void translate() throws IOException {
+        stats.begin("codegen");
+        writer = new CodeWriter(target);
+        writer.setSharedCallReturn(sharedCallReturn);
+        writer.setCacheTop(cacheTop);
+        writer.setTailCalls(tailCalls);
+        writer.setCompactLocals(compactLocals);
+        writer.setShortEncodings(shortEncodings);
+        List<File> files = new ArrayList<>();
         if (source.isDirectory()) {
-            writer = new CodeWriter(target);
             writer.setFilename(source.getName());
-            writer.writeInit();
-            File[] files = source.listFiles();
-            assert files != null;
-            for (File file : files) {
+            File[] children = source.listFiles();
+            assert children != null;
+            for (File file : children) {
                 if (file.getName().endsWith(".vm")) {
-                    translateFile(file);
+                    files.add(file);
                 }
             }
         } else {
             // TODO: Do we need to init for a single file?
-            writer = new CodeWriter(target);
-            translateFile(source);
+            files.add(source);
+            staticFrames = null;
+        }
+        files.sort(Comparator.comparing(File::getName)); // listFiles() has no order
+        if (parallelism > 1 && files.size() > 1) {
+            translateParallel(files);
+        } else if (inliner == null && eliminator == null && staticFrames == null) { // one file at a time
+            writeInit();
+            for (File file : files) {
+                write(parse(file));
+            }
+        } else { // the whole program is needed for the call graph
+            List<VMProgram> programs = new ArrayList<>();
+            for (File file : files) {
+                programs.add(parse(file));
+            }
+            programs = analyze(programs);
+            for (VMProgram program : programs) {
+                write(program);
+            }
+        }
+        stats.end();
+        for (int i = 0; i < Opcode.PARSED; i++) {
+            stats.count(Opcode.VALUES[i].text, commandCounts[i]);
         }
+        stats.count("asm lines", writer.lines());
     }
 
-    // Translate a single file.
-    private void translateFile(File file) throws IOException {
-        assert !file.isDirectory();
-        String filename = file.getName().split("\\.")[0];
-        writer.setFilename(filename);
-        try (Parser parser = new Parser(file)) {
-            parser.advance();
-            while (parser.hasMoreCommand()) {
-                switch (parser.type()) {
-                    case ARITHMETIC:
-                        writer.writeArithmetic(parser.action());
-                        break;
-                    case MEMORY:
-                        writer.writeMemory(parser.action(), parser.segment(), parser.index());
-                        break;
-                    case BRANCH:
-                        switch (parser.action()) {
-                            case "label":
-                                writer.writeLabel(parser.label());
-                                break;
-                            case "goto":
-                                writer.writeGoto(parser.label());
-                                break;
-                            case "if-goto":
-                                writer.writeIf(parser.label());
-                                break;
-                            default:
-                                throw new IllegalStateException(String.format("bug, action: %s", parser.action()));
-                        }
-                        break;
-                    case FUNCTION:
-                        switch (parser.action()) {
-                            case "function":
-                                writer.writeFunction(parser.functionName(), parser.nVars());
-                                break;
-                            case "call":
-                                writer.writeCall(parser.functionName(), parser.nArgs());
-                                break;
-                            case "return":
-                                writer.writeReturn();
-                                break;
-                            default:
-                                throw new IllegalStateException(String.format("bug, action: %s", parser.action()));
-                        }
-                        break;
-                    default:
-                        throw new IllegalStateException(String.format("bug, action: %s", parser.action()));
+    private void translateParallel(List<File> files) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try {
+            stats.begin("parse");
+            List<Future<VMProgram>> parsed = new ArrayList<>();
+            for (File file : files) {
+                parsed.add(pool.submit(stats.track(() -> VMProgram.parse(file))));
+            }
+            List<VMProgram> programs = new ArrayList<>();
+            for (Future<VMProgram> future : parsed) {
+                VMProgram program = get(future);
+                count(program);
+                programs.add(program);
+            }
+            programs = analyze(programs);
+
+            stats.begin("codegen"); // and optimize
+            List<Future<Translation>> translated = new ArrayList<>();
+            for (VMProgram program : programs) {
+                translated.add(pool.submit(stats.track(() -> translateProgram(program))));
+            }
+            for (Future<Translation> future : translated) {
+                Translation translation = get(future);
+                writer.append(translation.asm, translation.lines);
+                if (optimizer != null) {
+                    optimizer.merge(translation.optimizer);
                 }
-                parser.advance();
             }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Optimize and translate a file into a buffer, the optimizer of the translator isn't thread safe.
+    private Translation translateProgram(VMProgram program) throws IOException {
+        VMOptimizer fileOptimizer = null;
+        if (optimizer != null) {
+            fileOptimizer = new VMOptimizer();
+            program = fileOptimizer.optimize(program);
+        }
+        StringWriter buffer = new StringWriter();
+        CodeWriter fileWriter = new CodeWriter(buffer);
+        fileWriter.setSharedCallReturn(sharedCallReturn);
+        fileWriter.setCacheTop(cacheTop);
+        fileWriter.setTailCalls(tailCalls);
+        fileWriter.setCompactLocals(compactLocals);
+        fileWriter.setShortEncodings(shortEncodings);
+        fileWriter.setStaticFrames(staticFrames);
+        fileWriter.write(program);
+        return new Translation(buffer.toString(), fileWriter.lines(), fileOptimizer);
+    }
+
+    // The whole program passes, then the bootstrap, which needs the size of the static frames.
+    private List<VMProgram> analyze(List<VMProgram> programs) throws IOException {
+        if (inliner != null) { // first, the inlined functions may be dead after
+            stats.begin("inline");
+            programs = inliner.inline(programs);
+        }
+        if (eliminator != null) {
+            stats.begin("dead code");
+            programs = eliminator.eliminate(programs);
+        }
+        if (staticFrames != null) {
+            stats.begin("static frames");
+            staticFrames.allocate(programs);
+            writer.setStaticFrames(staticFrames);
+        }
+        writeInit();
+        return programs;
+    }
+
+    private void writeInit() throws IOException {
+        if (source.isDirectory()) {
+            stats.begin("codegen");
+            writer.writeInit();
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Translation {
+
+        final String asm;
+
+        final int lines;
+
+        final VMOptimizer optimizer;
+
+        Translation(String asm, int lines, VMOptimizer optimizer) {
+            this.asm = asm;
+            this.lines = lines;
+            this.optimizer = optimizer;
         }
     }
 
+    private VMProgram parse(File file) throws IOException {
+        assert !file.isDirectory();
+        stats.begin("parse");
+        VMProgram program = VMProgram.parse(file);
+        count(program);
+        return program;
+    }
+
+    private void count(VMProgram program) {
+        stats.count("files", 1);
+        stats.count("lines", program.lines());
+        for (int i = 0; i < program.size(); i++) {
+            commandCounts[program.opcode(i).ordinal()]++;
+        }
+    }
+
+    private void write(VMProgram program) throws IOException {
+        if (optimizer != null) {
+            stats.begin("optimize");
+            program = optimizer.optimize(program);
+        }
+        stats.begin("codegen");
+        writer.write(program);
+    }
+
     @Override
     public void close() throws IOException {
+        stats.begin("write");
         writer.close();
+        stats.end();
     }
 
     public static void main(String[] args) {
         if (args.length == 0) {
-            System.err.println("Usage: java -jar vm-translator.jar vm-file/vm-directory");
+            System.err.println("Usage: java -jar vm-translator.jar [--optimize] [--inline[=size]] [--dce] [--shared-call] [--cache-top] [--tail-call] [--compact-locals] [--short-encodings] [--static-frames] [--parallel[=threads]] [--stats] [--stats-json[=file]] vm-file/vm-directory");
+            System.err.println("       --optimize folds constants, fuses push/pop pairs and compare/if-goto, and prints the hits of every rule,");
+            System.err.println("       --inline inlines the calls to leaf functions of at most size (16) commands, and prints them,");
+            System.err.println("       --dce only translates the functions reachable from Sys.init, and prints the dropped ones,");
+            System.err.println("       --shared-call jumps to shared call and return routines instead of inlining them,");
+            System.err.println("       --cache-top keeps the top of the stack in D between commands,");
+            System.err.println("       --tail-call reuses the frame of the caller for a call followed by return,");
+            System.err.println("       --compact-locals zeroes the locals with stores or a loop, only the ones read before written,");
+            System.err.println("       --short-encodings picks the shortest instructions for every segment and index,");
+            System.err.println("       --static-frames puts the frames of the functions that aren't recursive at fixed addresses,");
+            System.err.println("       --parallel translates the files of a directory concurrently,");
+            System.err.println("       --stats prints the time of every phase and the counters to stderr,");
+            System.err.println("       --stats-json prints them as JSON to stderr or the file");
             System.exit(0);
         }
-        try (VMTranslator translator = new VMTranslator(new File(args[0]))) {
-            translator.translate();
+        boolean optimize = false;
+        int inlineThreshold = 0;
+        boolean eliminateDeadCode = false;
+        boolean sharedCallReturn = false;
+        boolean cacheTop = false;
+        boolean tailCalls = false;
+        boolean compactLocals = false;
+        boolean shortEncodings = false;
+        boolean staticFrames = false;
+        int parallelism = 1;
+        boolean stats = false;
+        String statsJson = null; // "" for stderr
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--optimize")) {
+                optimize = true;
+            } else if (args[i].equals("--inline")) {
+                inlineThreshold = 16;
+            } else if (args[i].startsWith("--inline=")) {
+                inlineThreshold = Integer.parseInt(args[i].substring("--inline=".length()));
+            } else if (args[i].equals("--dce")) {
+                eliminateDeadCode = true;
+            } else if (args[i].equals("--shared-call")) {
+                sharedCallReturn = true;
+            } else if (args[i].equals("--cache-top")) {
+                cacheTop = true;
+            } else if (args[i].equals("--tail-call")) {
+                tailCalls = true;
+            } else if (args[i].equals("--compact-locals")) {
+                compactLocals = true;
+            } else if (args[i].equals("--short-encodings")) {
+                shortEncodings = true;
+            } else if (args[i].equals("--static-frames")) {
+                staticFrames = true;
+            } else if (args[i].equals("--parallel")) {
+                parallelism = Runtime.getRuntime().availableProcessors();
+            } else if (args[i].startsWith("--parallel=")) {
+                parallelism = Integer.parseInt(args[i].substring("--parallel=".length()));
+            } else if (args[i].equals("--stats")) {
+                stats = true;
+            } else if (args[i].equals("--stats-json")) {
+                statsJson = "";
+            } else if (args[i].startsWith("--stats-json=")) {
+                statsJson = args[i].substring("--stats-json=".length());
+            } else {
+                System.err.println("unknown option " + args[i]);
+                System.exit(0);
+            }
+        }
+        try {
+            VMTranslator translator = new VMTranslator(new File(args[args.length - 1]));
+            translator.setSharedCallReturn(sharedCallReturn);
+            translator.setCacheTop(cacheTop);
+            translator.setOptimize(optimize);
+            translator.setInlineThreshold(inlineThreshold);
+            translator.setEliminateDeadCode(eliminateDeadCode);
+            translator.setTailCalls(tailCalls);
+            translator.setCompactLocals(compactLocals);
+            translator.setShortEncodings(shortEncodings);
+            translator.setStaticFrames(staticFrames);
+            translator.setParallelism(parallelism);
+            try {
+                translator.translate();
+            } finally {
+                translator.close();
+            }
+            if (inlineThreshold > 0) {
+                System.err.print(translator.inlinerReport());
+            }
+            if (eliminateDeadCode) {
+                System.err.print(translator.deadCodeReport());
+            }
+            if (translator.staticFramesReport() != null) {
+                System.err.print(translator.staticFramesReport());
+            }
+            if (optimize) {
+                System.err.print(translator.optimizerReport());
+            }
+            if (stats) {
+                System.err.print(translator.stats.toText());
+            }
+            if (statsJson != null && statsJson.isEmpty()) {
+                System.err.println(translator.stats.toJson());
+            } else if (statsJson != null) {
+                try (Writer writer = new FileWriter(statsJson)) {
+                    writer.write(translator.stats.toJson());
+                    writer.write('\n');
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println("error when translating");
@@ -3,8 +3,25 @@ package com.github.afkbrb.hack.vm.translator;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class Tests {
 
@@ -14,4 +31,594 @@ public class Tests {
         System.out.println(Arrays.toString(s.split(" ")));
     }
 
+
+    @Test
+    public void parserTest() throws IOException {
+        File vmFile = writeVm("// comment\r\n\tpush  constant 17 // x\r\n\r\nfunction Foo.bar 2\nif-goto LOOP\nadd\npush constant 32767");
+        try (Parser parser = new Parser(vmFile)) {
+            parser.advance();
+            assertEquals(Parser.CommandType.MEMORY, parser.type());
+            assertEquals("push", parser.action());
+            assertEquals("constant", parser.segment());
+            assertEquals(17, parser.index());
+            parser.advance();
+            assertEquals("function", parser.action());
+            assertEquals("Foo.bar", parser.functionName());
+            assertEquals(2, parser.nVars());
+            parser.advance();
+            assertEquals(Parser.CommandType.BRANCH, parser.type());
+            assertEquals("LOOP", parser.label());
+            parser.advance();
+            assertEquals(Parser.CommandType.ARITHMETIC, parser.type());
+            assertEquals("add", parser.action());
+            parser.advance();
+            assertEquals(32767, parser.index());
+            parser.advance();
+            assertFalse(parser.hasMoreCommand());
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parserOverflowTest() throws IOException {
+        File vmFile = writeVm("push constant 4294967297\n"); // 2^32 + 1 must not wrap around to 1
+        try (Parser parser = new Parser(vmFile)) {
+            parser.advance();
+        }
+    }
+
+    @Test
+    public void mappedParserTest() throws IOException {
+        // several buffers long, so lines are split across the reads of both streams
+        StringBuilder sb = new StringBuilder("function Foo.bar 2\n");
+        for (int i = 0; sb.length() < 3 * (1 << 16); i++) {
+            sb.append("label L").append(i).append(" // l\r\npush local ").append(i % 2).append("\npop static ")
+                    .append(i % 200).append("\nnot\nif-goto L").append(i).append("\ncall Foo.bar 1\n");
+        }
+        sb.append("return\n");
+        File vmFile = writeVm(sb.toString());
+        try (Parser streamed = new Parser(vmFile); Parser mapped = new Parser(vmFile, 0)) {
+            streamed.advance();
+            mapped.advance();
+            while (streamed.hasMoreCommand()) {
+                assertTrue(mapped.hasMoreCommand());
+                assertEquals(streamed.opcode(), mapped.opcode());
+                assertEquals(streamed.segmentType(), mapped.segmentType());
+                assertEquals(streamed.index(), mapped.index());
+                assertEquals(streamed.label(), mapped.label());
+                assertEquals(streamed.functionName(), mapped.functionName());
+                assertEquals(streamed.nVars(), mapped.nVars());
+                assertEquals(streamed.nArgs(), mapped.nArgs());
+                streamed.advance();
+                mapped.advance();
+            }
+            assertFalse(mapped.hasMoreCommand());
+            assertEquals(streamed.lineno(), mapped.lineno());
+        }
+    }
+
+    @Test
+    public void programTest() throws IOException {
+        File vmFile = writeVm("function Foo.bar 2\nlabel LOOP\npush static 3\npop that 1\nnot\nif-goto LOOP\ncall Foo.bar 1\nreturn\n");
+        VMProgram program = VMProgram.parse(vmFile);
+        assertEquals(8, program.size());
+        assertEquals(Opcode.FUNCTION, program.opcode(0));
+        assertEquals("Foo.bar", program.name(0));
+        assertEquals(2, program.operand(0));
+        assertEquals(Opcode.PUSH, program.opcode(2));
+        assertEquals(Segment.STATIC, program.segment(2));
+        assertEquals(3, program.operand(2));
+        assertEquals(Segment.THAT, program.segment(3));
+        assertEquals(Opcode.NOT, program.opcode(4));
+        assertEquals(-1, program.nameId(4));
+        assertEquals(Opcode.IF_GOTO, program.opcode(5));
+        assertEquals(program.nameId(1), program.nameId(5)); // LOOP
+        assertEquals(program.nameId(0), program.nameId(6)); // Foo.bar
+        assertEquals(1, program.operand(6));
+        assertEquals(Opcode.RETURN, program.opcode(7));
+    }
+
+    @Test
+    public void optimizerTest() throws IOException {
+        File vmFile = writeVm("push constant 1\npush constant 2\nadd\nneg\npop local 0\n" // local 0 = -3
+                + "push constant 32767\npush constant 1\nneg\ngt\n" // overflows as on the CPU: false
+                + "push argument 1\npush constant 0\nadd\nnot\nnot\npop argument 2\n"
+                + "label L\npush temp 0\npop temp 0\npush constant 0\nnot\n");
+        VMOptimizer optimizer = new VMOptimizer();
+        VMProgram program = optimizer.optimize(VMProgram.parse(vmFile));
+
+        assertEquals(5, program.size());
+        assertEquals(Opcode.MOVE, program.opcode(0));
+        assertEquals(Segment.CONSTANT, program.segment(0));
+        assertEquals(-3, program.operand(0));
+        assertEquals(Segment.LOCAL, program.targetSegment(0));
+        assertEquals(0, program.targetOperand(0));
+        assertEquals(Opcode.PUSH, program.opcode(1)); // gt
+        assertEquals(0, program.operand(1));
+        assertEquals(Opcode.MOVE, program.opcode(2));
+        assertEquals(Segment.ARGUMENT, program.segment(2));
+        assertEquals(1, program.operand(2));
+        assertEquals(Segment.ARGUMENT, program.targetSegment(2));
+        assertEquals(2, program.targetOperand(2));
+        assertEquals(Opcode.LABEL, program.opcode(3));
+        assertEquals("L", program.name(3));
+        assertEquals(Opcode.PUSH, program.opcode(4)); // not 0
+        assertEquals(-1, program.operand(4));
+
+        assertEquals(5, optimizer.hits(VMOptimizer.Rule.FOLD));
+        assertEquals(1, optimizer.hits(VMOptimizer.Rule.IDENTITY));
+        assertEquals(1, optimizer.hits(VMOptimizer.Rule.DOUBLE_UNARY));
+        assertEquals(2, optimizer.hits(VMOptimizer.Rule.MOVE));
+        assertEquals(1, optimizer.hits(VMOptimizer.Rule.SAME));
+        assertTrue(optimizer.report().startsWith("vm optimizer: 20 -> 5 commands"));
+    }
+
+    @Test
+    public void compareIfTest() throws IOException {
+        File vmFile = writeVm("push local 0\npush constant 5\nlt\nnot\nif-goto END\n"
+                + "push local 0\npush local 1\neq\nif-goto END\n"
+                + "push local 0\nnot\nif-goto END\nlabel END\n");
+        VMOptimizer optimizer = new VMOptimizer();
+        VMProgram program = optimizer.optimize(VMProgram.parse(vmFile));
+        assertEquals(10, program.size());
+        assertEquals(Opcode.IF_GE, program.opcode(2));
+        assertEquals("END", program.name(2));
+        assertEquals(Opcode.IF_EQ, program.opcode(5));
+        assertEquals(Opcode.NOT, program.opcode(7)); // not a comparison
+        assertEquals(Opcode.IF_GOTO, program.opcode(8));
+        assertEquals(2, optimizer.hits(VMOptimizer.Rule.COMPARE_IF));
+    }
+
+    @Test
+    public void deadFunctionTest() throws IOException {
+        File dir = Files.createTempDirectory("Dead").toFile();
+        dir.deleteOnExit();
+        writeVm(dir, "Sys.vm", "function Sys.init 0\ncall Main.main 0\nlabel END\ngoto END\n");
+        writeVm(dir, "Main.vm", "function Main.unused 0\ncall Main.used 0\nreturn\n"
+                + "function Main.main 0\ncall Main.used 0\nreturn\n"
+                + "function Main.used 0\npush constant 0\nreturn\n");
+        File asmFile = new File(dir, dir.getName() + ".asm");
+        asmFile.deleteOnExit();
+
+        try (VMTranslator translator = new VMTranslator(dir)) {
+            translator.setEliminateDeadCode(true);
+            translator.translate();
+            assertTrue(translator.deadCodeReport().startsWith("dead code: 4 -> 3 functions, 13 -> 10 commands"));
+            assertTrue(translator.deadCodeReport().contains("Main.unused"));
+        }
+        List<String> asm = Files.readAllLines(asmFile.toPath());
+        assertTrue(asm.stream().anyMatch(line -> line.startsWith("(Main.used)")));
+        assertFalse(asm.stream().anyMatch(line -> line.startsWith("(Main.unused)")));
+    }
+
+    @Test
+    public void inlinerTest() throws IOException {
+        File dir = Files.createTempDirectory("Inline").toFile();
+        dir.deleteOnExit();
+        writeVm(dir, "Lib.vm", "function Lib.peek 0\npush static 0\npush argument 0\nadd\npop pointer 1\npush that 0\nreturn\n"
+                + "function Lib.abs 0\npush argument 0\npush constant 0\nlt\nif-goto NEG\npush argument 0\nreturn\n"
+                + "label NEG\npush argument 0\nneg\nreturn\n"
+                + "function Lib.loop 0\nlabel L\ngoto L\n"
+                + "function Lib.calls 0\ncall Lib.loop 0\nreturn\n");
+        writeVm(dir, "Main.vm", "function Main.main 1\npush local 0\ncall Lib.peek 1\ncall Lib.abs 1\n"
+                + "call Lib.loop 0\ncall Lib.calls 0\nreturn\n");
+        List<VMProgram> programs = new ArrayList<>();
+        for (String name : new String[]{"Lib.vm", "Main.vm"}) {
+            programs.add(VMProgram.parse(new File(dir, name)));
+        }
+        Inliner inliner = new Inliner(16);
+        VMProgram main = inliner.inline(programs).get(1);
+
+        assertEquals("Main.main", main.name(0));
+        assertEquals(1 + 2, main.operand(0)); // argument 0 and the saved THAT of the call sites
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < main.size(); i++) {
+            sb.append(main.opcode(i).text);
+            if (main.segment(i) != null) sb.append(' ').append(main.segment(i).text).append(' ').append(main.operand(i));
+            if (main.name(i) != null) sb.append(' ').append(main.name(i));
+            sb.append('\n');
+        }
+        assertEquals("push local 0\n"
+                + "pop local 1\npush pointer 1\npop local 2\n" // Lib.peek
+                + "push static 0 Lib\npush local 1\nadd\npop pointer 1\npush that 0\npush local 2\npop pointer 1\n"
+                + "pop local 1\npush local 1\npush constant 0\nlt\nif-goto Lib.abs$NEG.1\n" // Lib.abs
+                + "push local 1\ngoto Lib.abs$$END.1\nlabel Lib.abs$NEG.1\npush local 1\nneg\nlabel Lib.abs$$END.1\n"
+                + "call Lib.loop\ncall Lib.calls\nreturn\n", sb.toString());
+        assertTrue(inliner.report().startsWith("inliner: 2 call sites of 2 functions, 31 -> 50 commands"));
+
+        // A label of the callee named END must not meet the end label of its early return.
+        writeVm(dir, "Lib.vm", "function Lib.sel 0\npush argument 0\nif-goto END\npush constant 5\nreturn\n"
+                + "label END\npush constant 7\nreturn\n");
+        writeVm(dir, "Main.vm", "function Main.main 0\npush constant 1\ncall Lib.sel 1\nreturn\n");
+        programs.clear();
+        for (String name : new String[]{"Lib.vm", "Main.vm"}) {
+            programs.add(VMProgram.parse(new File(dir, name)));
+        }
+        main = new Inliner(16).inline(programs).get(1);
+        List<String> labels = new ArrayList<>();
+        for (int i = 1; i < main.size(); i++) {
+            if (main.opcode(i) == Opcode.LABEL) {
+                assertFalse(main.name(i), labels.contains(main.name(i)));
+                labels.add(main.name(i));
+            }
+        }
+        assertEquals(Arrays.asList("Lib.sel$END.0", "Lib.sel$$END.0"), labels);
+    }
+
+    @Test
+    public void staticFramesTest() throws IOException {
+        File dir = Files.createTempDirectory("Static").toFile();
+        dir.deleteOnExit();
+        writeVm(dir, "Sys.vm", "function Sys.init 0\ncall Main.main 0\nlabel END\ngoto END\n");
+        writeVm(dir, "Main.vm", "function Main.main 1\npush constant 2048\npop pointer 0\n"
+                + "push constant 1\npush constant 2\ncall Main.f 2\npop local 0\n"
+                + "push local 0\ncall Main.g 1\npush constant 3\ncall Main.fact 1\nadd\nreturn\n"
+                + "function Main.f 1\npush argument 0\npush argument 1\nadd\npop local 0\npush local 0\nreturn\n"
+                + "function Main.g 0\npush argument 0\nreturn\n"
+                + "function Main.fact 0\npush argument 0\npush argument 0\ncall Main.f 2\ncall Main.fact 1\nreturn\n");
+        File asmFile = new File(dir, dir.getName() + ".asm");
+        asmFile.deleteOnExit();
+
+        List<VMProgram> programs = new ArrayList<>();
+        for (String name : new String[]{"Main.vm", "Sys.vm"}) {
+            programs.add(VMProgram.parse(new File(dir, name)));
+        }
+        StaticFrames frames = new StaticFrames();
+        frames.allocate(programs);
+        assertNull(frames.frame("Main.fact"));
+        assertEquals(256, frames.frame("Sys.init").returnAddress);
+        assertEquals(260, frames.frame("Main.main").savedThis); // ret, sp, this, local 0
+        assertEquals(-1, frames.frame("Main.main").savedThat);
+        assertEquals(262, frames.frame("Main.f").returnAddress); // above Main.main, Main.fact has none
+        assertEquals(264, frames.frame("Main.f").arguments);
+        assertEquals(266, frames.frame("Main.f").locals);
+        assertEquals(262, frames.frame("Main.g").returnAddress); // shares RAM with Main.f
+        assertEquals(11, frames.size());
+
+        try (VMTranslator translator = new VMTranslator(dir)) {
+            translator.setStaticFrames(true);
+            translator.translate();
+            assertEquals("static frames: 4 of 5 functions, 1 recursive, 11 words at 256\n", translator.staticFramesReport());
+        }
+        List<String> asm = Files.readAllLines(asmFile.toPath());
+        assertEquals("@267", asm.get(0)); // the stack starts above the frames
+        int f = asm.indexOf("(Main.f) // function Main.f 1");
+        assertEquals(Arrays.asList("@SP", "D=M", "@263", "M=D", "@266", "M=0", "@264", "D=M"), asm.subList(f + 1, f + 9));
+    }
+
+    @Test
+    public void parallelTest() throws IOException {
+        File dir = Files.createTempDirectory("Parallel").toFile();
+        dir.deleteOnExit();
+        writeVm(dir, "Sys.vm", "function Sys.init 0\ncall B.f 0\nlabel END\ngoto END\n");
+        for (String name : new String[]{"C", "A", "B"}) {
+            writeVm(dir, name + ".vm", "function " + name + ".f 0\npush static 0\npush constant 1\nlt\n"
+                    + "push constant 2\neq\npop static 1\ncall " + name + ".f 0\nreturn\n");
+        }
+        File asmFile = new File(dir, dir.getName() + ".asm");
+        asmFile.deleteOnExit();
+
+        try (VMTranslator translator = new VMTranslator(dir)) {
+            translator.translate();
+        }
+        List<String> sequential = Files.readAllLines(asmFile.toPath());
+        try (VMTranslator translator = new VMTranslator(dir)) {
+            translator.setParallelism(4);
+            translator.translate();
+        }
+        assertEquals(sequential, Files.readAllLines(asmFile.toPath()));
+        assertTrue(sequential.contains("(A$JMP_1)")); // per file
+        assertTrue(sequential.contains("(C$JMP_1)"));
+        assertTrue(sequential.indexOf("(A.f) // function A.f 0") < sequential.indexOf("(B.f) // function B.f 0"));
+        assertTrue(sequential.indexOf("(B.f) // function B.f 0") < sequential.indexOf("(C.f) // function C.f 0"));
+    }
+
+    @Test
+    public void sharedCallReturnTest() throws IOException {
+        File dir = Files.createTempDirectory("Shared").toFile();
+        dir.deleteOnExit();
+        writeVm(dir, "Sys.vm", "function Sys.init 0\npush constant 1\ncall Sys.f 1\ncall Sys.f 1\nlabel END\ngoto END\n"
+                + "function Sys.f 1\npush argument 0\nreturn\n");
+        File asmFile = new File(dir, dir.getName() + ".asm");
+        asmFile.deleteOnExit();
+
+        try (VMTranslator translator = new VMTranslator(dir)) {
+            translator.translate();
+        }
+        List<String> inline = Files.readAllLines(asmFile.toPath());
+        try (VMTranslator translator = new VMTranslator(dir)) {
+            translator.setSharedCallReturn(true);
+            translator.translate();
+        }
+        List<String> shared = Files.readAllLines(asmFile.toPath());
+
+        assertTrue(shared.size() < inline.size());
+        assertEquals(1, shared.stream().filter(line -> line.equals("($$CALL)")).count());
+        assertEquals(1, shared.stream().filter(line -> line.equals("($$RETURN)")).count());
+        assertEquals(3, shared.stream().filter(line -> line.equals("@$$CALL")).count()); // and Sys.init
+    }
+
+    @Test
+    public void cacheTopTest() throws IOException {
+        File vmFile = writeVm("push local 0\npush constant 1\nadd\npop local 0\n");
+        File asmFile = new File(vmFile.getPath().replace(".vm", ".asm"));
+        asmFile.deleteOnExit();
+        try (VMTranslator translator = new VMTranslator(vmFile)) {
+            translator.setCacheTop(true);
+            translator.translate();
+        }
+        assertEquals(Arrays.asList("@LCL", "D=M", "@0", "A=D+A", "D=M", // push local 0
+                "@SP", "A=M", "M=D", "@SP", "M=M+1", "@1", "D=A", // push constant 1
+                "@SP", "AM=M-1", "D=D+M", // add
+                "@LCL", "A=M", "M=D"), // pop local 0
+                Files.readAllLines(asmFile.toPath()));
+    }
+
+    @Test
+    public void unassignedLocalsTest() throws IOException {
+        // local 0 is written first, local 1 only on one branch, local 2 is read in a loop
+        // before the write at its end, local 3 is written on both branches, local 4 never read
+        File vmFile = writeVm("function Foo.f 5\npush constant 1\npop local 0\npush local 0\n"
+                + "if-goto ELSE\npush constant 2\npop local 1\npush constant 3\npop local 3\ngoto END\n"
+                + "label ELSE\npush constant 4\npop local 3\nlabel END\npush local 1\npush local 3\nadd\npop local 4\n"
+                + "label LOOP\npush local 2\nif-goto DONE\npush constant 0\npop local 2\ngoto LOOP\n"
+                + "label DONE\npush constant 0\nreturn\nfunction Foo.g 0\n");
+        VMProgram program = VMProgram.parse(vmFile);
+        BitSet expected = new BitSet();
+        expected.set(1);
+        expected.set(2);
+        assertEquals(expected, UnassignedLocals.of(program, 0));
+    }
+
+    @Test
+    public void compactLocalsTest() throws IOException {
+        File vmFile = writeVm("function Foo.f 3\npush local 2\npop local 0\npush constant 0\nreturn\n"
+                + "function Foo.g 9\npush local 0\npush local 1\npush local 2\npush local 3\npush local 4\n"
+                + "push local 5\npush local 6\npush local 7\npush local 8\nreturn\n");
+        File asmFile = new File(vmFile.getPath().replace(".vm", ".asm"));
+        asmFile.deleteOnExit();
+        try (VMTranslator translator = new VMTranslator(vmFile)) {
+            translator.setCompactLocals(true);
+            translator.translate();
+        }
+        List<String> asm = Files.readAllLines(asmFile.toPath());
+        int f = asm.indexOf("(Foo.f) // function Foo.f 3");
+        assertEquals(Arrays.asList("@SP", "A=M", "A=A+1", "A=A+1", "M=0", // local 2, 0 and 1 are written first
+                "@3", "D=A", "@SP", "M=D+M"), asm.subList(f + 1, f + 10));
+        int g = asm.indexOf("(Foo.g) // function Foo.g 9");
+        assertEquals(Arrays.asList("@9", "D=A", "(Foo.g$$LOCALS)", "@SP", "AM=M+1", "A=A-1", "M=0", "D=D-1",
+                "@Foo.g$$LOCALS", "D;JGT"), asm.subList(g + 1, g + 11));
+    }
+
+    @Test
+    public void tailCallTest() throws IOException {
+        File vmFile = writeVm("function Foo.f 0\npush argument 0\ncall Foo.g 1\nreturn\n"
+                + "function Foo.g 0\npush argument 0\ncall Foo.f 1\npop temp 0\npush constant 0\nreturn\n");
+        File asmFile = new File(vmFile.getPath().replace(".vm", ".asm"));
+        asmFile.deleteOnExit();
+        try (VMTranslator translator = new VMTranslator(vmFile)) {
+            translator.setTailCalls(true);
+            translator.translate();
+        }
+        List<String> asm = Files.readAllLines(asmFile.toPath());
+        int call = asm.indexOf("@LCL // tail call Foo.g 1");
+        assertEquals(Arrays.asList("@LCL // tail call Foo.g 1", "D=M", "@ARG", "D=D-M", "@6", "D=D-A",
+                "@Foo.f$tail.0", "D;JNE", // LCL - ARG != 5 + 1
+                "@SP", "AM=M-1", "D=M", "@ARG", "A=M", "M=D", // argument 0 = the new argument 0
+                "@LCL", "D=M", "@SP", "M=D", "@Foo.g", "0;JMP", "(Foo.f$tail.0)"), asm.subList(call, call + 21));
+        assertTrue(asm.get(call + 21).startsWith("@Foo.f$ret.0 // call Foo.g 1")); // the ordinary call
+        assertEquals(1, asm.stream().filter(line -> line.contains("tail call")).count()); // not Foo.f in Foo.g
+    }
+
+    @Test
+    public void shortEncodingsTest() throws IOException {
+        Object[][] table = { // command, segment, index, then cycles by default and with short encodings
+                {Opcode.PUSH, Segment.CONSTANT, 0, 7, 4},
+                {Opcode.PUSH, Segment.CONSTANT, 1, 7, 4},
+                {Opcode.PUSH, Segment.CONSTANT, -1, 7, 4},
+                {Opcode.PUSH, Segment.CONSTANT, 17, 7, 6},
+                {Opcode.PUSH, Segment.LOCAL, 0, 10, 7},
+                {Opcode.PUSH, Segment.ARGUMENT, 1, 10, 7},
+                {Opcode.PUSH, Segment.THIS, 2, 10, 8},
+                {Opcode.PUSH, Segment.THAT, 3, 10, 9},
+                {Opcode.PUSH, Segment.TEMP, 3, 7, 6},
+                {Opcode.PUSH, Segment.POINTER, 1, 7, 6},
+                {Opcode.PUSH, Segment.STATIC, 2, 7, 6},
+                {Opcode.POP, Segment.LOCAL, 0, 12, 6},
+                {Opcode.POP, Segment.ARGUMENT, 1, 12, 6},
+                {Opcode.POP, Segment.THIS, 5, 12, 10},
+                {Opcode.POP, Segment.THAT, 6, 12, 11},
+                {Opcode.POP, Segment.LOCAL, 7, 12, 12}, // through R13
+                {Opcode.POP, Segment.TEMP, 0, 5, 5},
+                {Opcode.POP, Segment.POINTER, 1, 5, 5},
+                {Opcode.POP, Segment.STATIC, 2, 5, 5},
+                {Opcode.MOVE, Segment.CONSTANT, 0, 6, 3}, // to local 1
+                {Opcode.MOVE, Segment.CONSTANT, -1, 6, 3},
+                {Opcode.MOVE, Segment.LOCAL, 2, 9, 7},
+        };
+        for (Object[] row : table) {
+            int[][] ram = new int[2][];
+            for (int mode = 0; mode < 2; mode++) {
+                StringWriter asm = new StringWriter();
+                CodeWriter writer = new CodeWriter(asm);
+                writer.setFilename("Foo");
+                writer.setShortEncodings(mode == 1);
+                Segment segment = (Segment) row[1];
+                int index = (int) row[2];
+                if (row[0] == Opcode.PUSH) {
+                    writer.writePush(segment, index);
+                } else if (row[0] == Opcode.POP) {
+                    writer.writePop(segment, index);
+                } else {
+                    writer.writeMove(segment, index, Segment.LOCAL, 1);
+                }
+                Hack hack = new Hack(asm.toString());
+                assertEquals(Arrays.toString(row), (int) row[3 + mode], hack.run());
+                ram[mode] = hack.ram;
+                Arrays.fill(ram[mode], 13, 16, 0); // scratch
+            }
+            assertArrayEquals(Arrays.toString(row), ram[0], ram[1]);
+        }
+    }
+
+    @Test
+    public void statsJsonTest() throws IOException {
+        File dir = Files.createTempDirectory("Stats").toFile();
+        dir.deleteOnExit();
+        writeVm(dir, "Sys.vm", "function Sys.init 0\ncall Main.main 0\nlabel END\ngoto END\n");
+        writeVm(dir, "Main.vm", "function Main.main 0\npush constant 1\npush constant 2\nadd\nreturn\n");
+        new File(dir, dir.getName() + ".asm").deleteOnExit();
+        for (String mode : new String[]{"--optimize", "--parallel=2"}) {
+            File jsonFile = File.createTempFile("stats", ".json");
+            jsonFile.deleteOnExit();
+            VMTranslator.main(new String[]{mode, "--stats-json=" + jsonFile.getPath(), dir.getPath()});
+            String json = new String(Files.readAllBytes(jsonFile.toPath()));
+            assertTrue(json.startsWith("{\"tool\":\"vm-translator\",\"phases_ms\":{"));
+            assertTrue(json.contains("\"parse\":"));
+            assertTrue(json.contains("\"codegen\":"));
+            assertEquals("2", jsonValue(json, "files"));
+            assertEquals("9", jsonValue(json, "lines"));
+            assertEquals("2", jsonValue(json, "push"));
+            assertEquals("1", jsonValue(json, "add"));
+            assertEquals("2", jsonValue(json, "function"));
+            assertEquals("1", jsonValue(json, "call"));
+            assertTrue(Long.parseLong(jsonValue(json, "asm lines")) > 0);
+            assertTrue(Long.parseLong(jsonValue(json, "peak_heap_bytes")) > 0);
+            assertTrue(Long.parseLong(jsonValue(json, "allocated_bytes")) > 0);
+        }
+    }
+
+    static String jsonValue(String json, String key) {
+        Matcher matcher = Pattern.compile("\"" + Pattern.quote(key) + "\":([^,}]+)").matcher(json);
+        assertTrue(key, matcher.find());
+        return matcher.group(1);
+    }
+
+    void writeVm(File dir, String name, String vm) throws IOException {
+        File vmFile = new File(dir, name);
+        vmFile.deleteOnExit();
+        try (Writer writer = new FileWriter(vmFile)) {
+            writer.write(vm);
+        }
+    }
+
+    File writeVm(String vm) throws IOException {
+        File vmFile = File.createTempFile("Test", ".vm");
+        vmFile.deleteOnExit();
+        try (Writer writer = new FileWriter(vmFile)) {
+            writer.write(vm);
+        }
+        return vmFile;
+    }
+
+    // Run straight from the first instruction of asm to its end on a Hack CPU, the stack
+    // holds 11 to 15 from 256, and the segments have values of their own.
+    static final class Hack {
+
+        final int[] ram = new int[32768];
+
+        private final List<String> rom = new ArrayList<>();
+
+        private final Map<String, Integer> symbols = new HashMap<>();
+
+        Hack(String asm) {
+            for (int i = 0; i < 16; i++) {
+                symbols.put("R" + i, i);
+            }
+            String[] pointers = {"SP", "LCL", "ARG", "THIS", "THAT"};
+            for (int i = 0; i < pointers.length; i++) {
+                symbols.put(pointers[i], i);
+            }
+            for (String line : asm.split("\n")) {
+                line = line.replaceAll("//.*", "").trim();
+                if (line.startsWith("(")) {
+                    symbols.put(line.substring(1, line.length() - 1), rom.size());
+                } else if (!line.isEmpty()) {
+                    rom.add(line);
+                }
+            }
+            int[] bases = {261, 300, 400, 3000, 3010};
+            for (int i = 0; i < bases.length; i++) {
+                ram[i] = bases[i];
+            }
+            for (int i = 0; i < 8; i++) {
+                ram[5 + i] = 50 + i; // temp
+                ram[256 + i] = i < 5 ? 11 + i : 0;
+                ram[300 + i] = 100 + i;
+                ram[400 + i] = 200 + i;
+                ram[3000 + i] = 300 + i;
+                ram[3010 + i] = 400 + i;
+            }
+        }
+
+        // Return the cycles taken.
+        int run() {
+            int a = 0;
+            int d = 0;
+            int pc = 0;
+            int cycles = 0;
+            int variable = 16;
+            while (pc < rom.size()) {
+                String instruction = rom.get(pc++);
+                cycles++;
+                if (instruction.startsWith("@")) {
+                    String symbol = instruction.substring(1);
+                    if (Character.isDigit(symbol.charAt(0))) {
+                        a = Integer.parseInt(symbol);
+                    } else {
+                        if (!symbols.containsKey(symbol)) {
+                            symbols.put(symbol, variable++);
+                        }
+                        a = symbols.get(symbol);
+                    }
+                    continue;
+                }
+                String dest = instruction.contains("=") ? instruction.substring(0, instruction.indexOf('=')) : "";
+                String comp = instruction.substring(dest.isEmpty() ? 0 : dest.length() + 1).split(";")[0];
+                String jump = instruction.contains(";") ? instruction.substring(instruction.indexOf(';') + 1) : "";
+                int value = (short) compute(comp, a, d);
+                if (dest.contains("M")) ram[a] = value;
+                if (dest.contains("D")) d = value;
+                if (dest.contains("A")) a = value;
+                if (jump.equals("JMP") || jump.equals("JEQ") && value == 0 || jump.equals("JNE") && value != 0
+                        || jump.equals("JGT") && value > 0 || jump.equals("JLT") && value < 0
+                        || jump.equals("JGE") && value >= 0 || jump.equals("JLE") && value <= 0) {
+                    pc = a;
+                }
+            }
+            return cycles;
+        }
+
+        private int compute(String comp, int a, int d) {
+            if (comp.length() == 2 && comp.charAt(0) == '!') return ~operand(comp.substring(1), a, d);
+            if (comp.length() == 2 && comp.charAt(0) == '-') return -operand(comp.substring(1), a, d);
+            if (comp.length() == 3) {
+                int x = operand(comp.substring(0, 1), a, d);
+                int y = operand(comp.substring(2), a, d);
+                switch (comp.charAt(1)) {
+                    case '+':
+                        return x + y;
+                    case '-':
+                        return x - y;
+                    case '&':
+                        return x & y;
+                    case '|':
+                        return x | y;
+                }
+            }
+            return operand(comp, a, d);
+        }
+
+        private int operand(String operand, int a, int d) {
+            switch (operand) {
+                case "A":
+                    return a;
+                case "D":
+                    return d;
+                case "M":
+                    return ram[a];
+                default:
+                    return Integer.parseInt(operand);
+            }
+        }
+    }
 }